@@ -17,16 +17,12 @@
 
 package com.focusit.log4jmongo.appender;
 
-import java.lang.management.ManagementFactory;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.AppenderSkeleton;
-import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.LocationInfo;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.ThrowableInformation;
@@ -122,10 +118,51 @@ public abstract class AbstractBsonAppender extends AppenderSkeleton {
 
     @Override
     protected final void append(final LoggingEvent loggingEvent) {
-	        Document bson = bsonifier.convert(loggingEvent);
+	        Document bson = toDocument(loggingEvent);
 	        append(bson);
     }
 
+    /**
+     * BSONifies a single Log4J LoggingEvent without appending it. Safe to call from several threads
+     * at once, which lets bulk loaders convert events off the thread that produced them.
+     *
+     * @param loggingEvent
+     *            The LoggingEvent object to BSONify <i>(may be null)</i>.
+     * @return The BSONified equivalent of the LoggingEvent object <i>(may be null)</i>.
+     */
+    protected Document toDocument(final LoggingEvent loggingEvent) {
+        return bsonifier.convert(loggingEvent);
+    }
+
+    /**
+     * BSONifies an event given by its parts, for loaders that read events from text and have no
+     * LoggingEvent to take apart. The document has the fields {@link #toDocument(LoggingEvent)} gives
+     * such an event, one without MDC and with a stack trace read as text: location is unknown and
+     * stacktraces is empty when there is no stack trace. Safe to call from several threads at once.
+     *
+     * @param loggerName
+     *            The logger name as made by {@link #toLoggerName(String)}, may be shared by many
+     *            events <i>(may be null)</i>.
+     * @param stacktraces
+     *            The stack trace lines separated by line breaks <i>(may be null)</i>.
+     * @return The BSONified event <i>(will not be null)</i>.
+     */
+    protected Document toDocument(final long timestamp, final String level, final String thread,
+            final String message, final String logger, final DBObject loggerName,
+            final String stacktraces) {
+        return bsonifier.convert(timestamp, level, thread, message, logger, loggerName, stacktraces);
+    }
+
+    /**
+     * @param logger
+     *            The logger name <i>(may be null)</i>.
+     * @return The logger name subdocument of an event, it is not modified afterwards and can be
+     *         reused <i>(may be null)</i>.
+     */
+    protected DBObject toLoggerName(final String logger) {
+        return bsonifier.bsonifyClassName(logger);
+    }
+
     protected abstract void append(Document bson);
     
     class LoggingEvent2Document {
@@ -155,26 +192,15 @@ public abstract class AbstractBsonAppender extends AppenderSkeleton {
         private static final String KEY_STACK_TRACE = "stackTrace";
         // Host and Process Info
         private static final String KEY_HOST = "host";
-        private static final String KEY_PROCESS = "process";
-        private static final String KEY_HOSTNAME = "name";
-        private static final String KEY_IP = "ip";
         // MDC Properties
         private static final String KEY_MDC_PROPERTIES = "properties";
 
-        private final DBObject hostInfo = new BasicDBObject();
+        // className of an unknown location, it is not modified and shared by events given by parts
+        private final DBObject unknownClassName = bsonifyClassName(LocationInfo.NA);
 
         public LoggingEvent2Document() {
-            setupNetworkInfo();
-        }
-
-        private void setupNetworkInfo() {
-            hostInfo.put(KEY_PROCESS, ManagementFactory.getRuntimeMXBean().getName());
-            try {
-                hostInfo.put(KEY_HOSTNAME, InetAddress.getLocalHost().getHostName());
-                hostInfo.put(KEY_IP, InetAddress.getLocalHost().getHostAddress());
-            } catch (UnknownHostException e) {
-                LogLog.warn(e.getMessage());
-            }
+            // start resolving host info, it is not waited for
+            HostInfo.get();
         }
 
         /**
@@ -207,6 +233,32 @@ public abstract class AbstractBsonAppender extends AppenderSkeleton {
             return (result);
         }
 
+        /**
+         * BSONifies an event given by its parts, the fields are the same as of a LoggingEvent with a
+         * string representation of its throwable and no location information.
+         */
+        public Document convert(final long timestamp, final String level, final String thread,
+                final String message, final String logger, final DBObject loggerName,
+                final String stacktraces) {
+            final Document result = new Document();
+
+            result.put(KEY_TIMESTAMP, new Date(timestamp));
+            nullSafePut(result, KEY_LEVEL, level);
+            nullSafePut(result, KEY_THREAD, thread);
+            nullSafePut(result, KEY_MESSAGE, message);
+            nullSafePut(result, KEY_LOGGER_NAME, loggerName);
+            result.append(KEY_LOGGER, logger);
+            result.put(KEY_FILE_NAME, LocationInfo.NA);
+            result.put(KEY_METHOD, LocationInfo.NA);
+            result.put(KEY_LINE_NUMBER, LocationInfo.NA);
+            result.put(KEY_CLASS_NAME, unknownClassName);
+            result.put(KEY_CLASS, LocationInfo.NA);
+            result.put(KEY_STACKTRACES, stacktraces != null ? stacktraces : "");
+            addHostnameInformation(result);
+
+            return result;
+        }
+
         /**
          * Adds MDC Properties to the DBObject.
          * 
@@ -289,13 +341,14 @@ public abstract class AbstractBsonAppender extends AppenderSkeleton {
         }
 
         /**
-         * Adds the current process's host name, VM name and IP address
+         * Adds the current process's host name, VM name and IP address, or just host name while
+         * they are being resolved
          * 
          * @param bson
          *            A BSON object containing host name, VM name and IP address
          */
         protected void addHostnameInformation(Document bson) {
-            nullSafePut(bson, KEY_HOST, hostInfo);
+            nullSafePut(bson, KEY_HOST, HostInfo.get());
         }
 
         /**
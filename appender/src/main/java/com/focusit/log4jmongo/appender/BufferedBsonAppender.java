@@ -0,0 +1,430 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.ErrorCode;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.DocumentCodec;
+
+import com.focusit.log4jmongo.appender.sink.EventSink;
+import com.mongodb.MongoClient;
+
+/**
+ * Abstract Log4J Appender that encodes events to BSON on the logging thread and passes them to an
+ * {@link EventSink} through an {@link EventBuffer}. Concrete classes only create the sink, so all
+ * destinations share the same buffering, batching and retry settings:
+ *
+ * <pre>
+ * log4j.appender.X.bufferSize=10000      # events to queue, 0 writes on the logging thread
+ * log4j.appender.X.bufferMemory=64MB     # or direct memory to queue events in, off the heap
+ * log4j.appender.X.startupBufferSize=1000 # events to keep till the sink is opened if bufferSize=0
+ * log4j.appender.X.batchSize=500         # maximum events per write
+ * log4j.appender.X.blocking=true         # wait for space in a full queue once opened, not drop
+ * log4j.appender.X.maxRetries=3          # retries of a failed write (default 0)
+ * log4j.appender.X.retryDelay=100        # milliseconds before first retry
+ * log4j.appender.X.reconnectAfterFailures=3 # failed writes in a row to recreate the sink after
+ * </pre>
+ *
+ * Reactivation and reconnect build a new sink while the current one keeps writing, see
+ * {@link #activateOptions()}.
+ *
+ * Setting bucketSize turns on bucket mode: instead of a document per event, events are packed into
+ * documents of up to bucketSize events grouped by logger (or another top level field, e.g. tag)
+ * and time slice, see {@link EventBuckets}. This cuts the number of documents and index entries by
+ * the bucket size at the price of querying events with $unwind:
+ *
+ * <pre>
+ * log4j.appender.X.bucketSize=100        # events per bucket, 0 stores a document per event
+ * log4j.appender.X.bucketMaxSize=4MB     # text per bucket, well below the 16MB document limit
+ * log4j.appender.X.bucketAge=1000        # milliseconds to keep a bucket open
+ * log4j.appender.X.bucketSlice=60000     # time slice in milliseconds
+ * log4j.appender.X.bucketBy=logger       # field to group events by
+ * </pre>
+ */
+public abstract class BufferedBsonAppender extends AbstractBsonAppender {
+    // DBObject values produced by the appender need default registry of the driver
+    private final DocumentCodec codec = new DocumentCodec(MongoClient.getDefaultCodecRegistry(),
+            new BsonTypeClassMap());
+
+    private int bufferSize = 0;
+    private long bufferMemory = 0;
+    private int startupBufferSize = 1000;
+    private int batchSize = 500;
+    private boolean blocking = false;
+    private int maxRetries = 0;
+    private long retryDelay = 100;
+    private int bucketSize = 0;
+    private long bucketMaxSize = 4 * 1024 * 1024;
+    private long bucketAge = 1000;
+    private long bucketSlice = 60000;
+    private String bucketBy = "logger";
+
+    private int reconnectAfterFailures = 3;
+
+    // producers only ever read these two, they are replaced, never cleared, while the appender is open
+    protected volatile EventBuffer buffer = null;
+    private volatile EventBuckets buckets = null;
+    // buffer of a new configuration or connection waiting for its sink to open
+    private final AtomicReference<EventBuffer> pending = new AtomicReference<EventBuffer>();
+    // last buffer passed to opened(EventSink), guarded by pending
+    private EventBuffer announced = null;
+    private final EventBuffer.Listener listener = new EventBuffer.Listener() {
+        @Override
+        public void opened(final EventBuffer opened) {
+            activate(opened);
+        }
+
+        @Override
+        public void failed(final EventBuffer failed, final int consecutiveFailures) {
+            if (reconnectAfterFailures > 0 && consecutiveFailures == reconnectAfterFailures
+                    && failed == buffer && pending.get() == null) {
+                errorHandler.error(consecutiveFailures + " writes in a row failed, reconnecting",
+                        null, ErrorCode.WRITE_FAILURE);
+                reload();
+            }
+        }
+    };
+
+    /**
+     * Creates the sink to write events to. Called on every activation and reconnect. The sink is
+     * opened later on a background thread, so this method should not do anything slow.
+     *
+     * @return sink <i>(must not be null)</i>.
+     * @throws Exception
+     *             if sink can't be created
+     */
+    protected abstract EventSink createSink() throws Exception;
+
+    /**
+     * Called when a sink is opened and becomes the one events are written to. Events may still be
+     * written to the previous sink till its buffer is drained.
+     *
+     * @param sink
+     *            the sink that became current
+     */
+    protected void opened(final EventSink sink) {
+        // nothing to do by default
+    }
+
+    /**
+     * Applies the configuration. On reactivation the current sink keeps receiving events till the
+     * sink of the new configuration is opened, then the new one is swapped in and the old one is
+     * drained and closed in background, so logging threads neither wait nor lose events.
+     *
+     * @see org.apache.log4j.AppenderSkeleton#activateOptions()
+     */
+    @Override
+    public void activateOptions() {
+        reload();
+        final EventBuckets previous = buckets;
+        buckets = bucketSize > 0 ? new EventBuckets(bucketSize, bucketMaxSize, bucketAge, bucketSlice, bucketBy,
+                new EventBuckets.Listener() {
+                    @Override
+                    public void sealed(final Document bucket) {
+                        final EventBuffer buffer = BufferedBsonAppender.this.buffer;
+                        if (buffer != null) {
+                            buffer.add(encode(bucket));
+                        }
+                    }
+                }) : null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Creates a new sink with the current configuration and swaps it in once it is opened.
+     */
+    protected void reload() {
+        final EventBuffer next;
+        try {
+            next = new EventBuffer(createSink(), bufferSize, bufferMemory, startupBufferSize, batchSize,
+                    maxRetries, retryDelay, blocking, errorHandler, listener);
+        } catch (final OutOfMemoryError e) {
+            errorHandler.error("No direct memory left for a buffer of " + bufferMemory + " bytes: " + e,
+                    null, ErrorCode.GENERIC_FAILURE);
+            return;
+        } catch (final Exception e) {
+            errorHandler.error("Unexpected exception while initialising " + getClass().getSimpleName(), e,
+                    ErrorCode.GENERIC_FAILURE);
+            return;
+        }
+        synchronized (pending) {
+            if (buffer == null) {
+                // nothing to keep writing to meanwhile, events wait in the new buffer
+                buffer = next;
+            } else {
+                closeInBackground(pending.getAndSet(next));
+            }
+        }
+        // it may have been opened before it was installed
+        activate(next);
+    }
+
+    /**
+     * Makes an opened buffer current, once.
+     */
+    private void activate(final EventBuffer opened) {
+        EventBuffer previous = null;
+        synchronized (pending) {
+            if (!opened.isOpened() || opened == announced) {
+                return;
+            }
+            if (opened != buffer) {
+                if (!pending.compareAndSet(opened, null)) {
+                    // replaced by a newer configuration or closed
+                    return;
+                }
+                previous = buffer;
+                buffer = opened;
+            }
+            announced = opened;
+            opened(opened.getSink());
+        }
+        closeInBackground(previous);
+    }
+
+    private static void closeInBackground(final EventBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                buffer.close();
+            }
+        }, "log4mongo-drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param bson
+     *            The BSON object to write, _id is generated if it is missing.
+     */
+    @Override
+    public void append(final Document bson) {
+        final EventBuffer buffer = this.buffer;
+        if (buffer != null && bson != null) {
+            final EventBuckets buckets = this.buckets;
+            if (buckets != null) {
+                buckets.add(bson);
+            } else {
+                buffer.add(encode(bson));
+            }
+        }
+    }
+
+    /**
+     * Encodes a document. The _id is generated here, so a retried write does not store the event
+     * twice.
+     */
+    protected RawBsonDocument encode(final Document bson) {
+        codec.generateIdIfAbsentFromDocument(bson);
+        return new RawBsonDocument(bson, codec);
+    }
+
+    /**
+     * @see org.apache.log4j.Appender#close()
+     */
+    @Override
+    public void close() {
+        if (buckets != null) {
+            buckets.close();
+            buckets = null;
+        }
+        final EventBuffer current;
+        final EventBuffer next;
+        synchronized (pending) {
+            current = buffer;
+            next = pending.getAndSet(null);
+            buffer = null;
+        }
+        if (next != null) {
+            next.close();
+        }
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * @return buffer in front of the sink, to read its counters <i>(null if not activated)</i>.
+     */
+    public EventBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize
+     *            number of events to queue, 0 to write every event on the logging thread.
+     */
+    public void setBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public long getBufferMemoryBytes() {
+        return bufferMemory;
+    }
+
+    /**
+     * @param value
+     *            direct memory to queue encoded events in, with optional KB, MB or GB suffix,
+     *            instead of bufferSize events on the heap <i>(0 to use bufferSize)</i>. It is
+     *            allocated as the backlog grows, see {@link DirectEventQueue}.
+     */
+    public void setBufferMemory(final String value) {
+        bufferMemory = OptionConverter.toFileSize(value, 0);
+    }
+
+    public int getStartupBufferSize() {
+        return startupBufferSize;
+    }
+
+    /**
+     * @param startupBufferSize
+     *            number of events to keep till the sink is opened when bufferSize is 0, with a
+     *            buffer they wait in the buffer.
+     */
+    public void setStartupBufferSize(final int startupBufferSize) {
+        this.startupBufferSize = startupBufferSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize
+     *            maximum number of events written at once.
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    /**
+     * @param blocking
+     *            true to make logging threads wait when the queue is full, false to drop events
+     *            (the default). Before the sink is first opened events are dropped either way.
+     */
+    public void setBlocking(final boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(final int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(final long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public int getReconnectAfterFailures() {
+        return reconnectAfterFailures;
+    }
+
+    /**
+     * @param reconnectAfterFailures
+     *            number of writes failed in a row (after retries) to recreate the sink after, 0 to
+     *            never recreate it.
+     */
+    public void setReconnectAfterFailures(final int reconnectAfterFailures) {
+        this.reconnectAfterFailures = reconnectAfterFailures;
+    }
+
+    public int getBucketSize() {
+        return bucketSize;
+    }
+
+    /**
+     * @param bucketSize
+     *            number of events per bucket document, 0 to store a document per event.
+     */
+    public void setBucketSize(final int bucketSize) {
+        this.bucketSize = bucketSize;
+    }
+
+    public long getBucketMaxSizeBytes() {
+        return bucketMaxSize;
+    }
+
+    /**
+     * @param value
+     *            characters of events per bucket, with optional KB or MB suffix, to seal it at. UTF-8
+     *            text may take up to three times as many bytes, so the default 4MB keeps buckets
+     *            below the 16MB document limit.
+     */
+    public void setBucketMaxSize(final String value) {
+        bucketMaxSize = OptionConverter.toFileSize(value, bucketMaxSize);
+    }
+
+    public long getBucketAge() {
+        return bucketAge;
+    }
+
+    /**
+     * @param bucketAge
+     *            milliseconds after the first event of a bucket to store it regardless of its size.
+     */
+    public void setBucketAge(final long bucketAge) {
+        this.bucketAge = bucketAge;
+    }
+
+    public long getBucketSlice() {
+        return bucketSlice;
+    }
+
+    /**
+     * @param bucketSlice
+     *            length of time slice in milliseconds, a bucket holds events of one slice only.
+     */
+    public void setBucketSlice(final long bucketSlice) {
+        this.bucketSlice = bucketSlice;
+    }
+
+    public String getBucketBy() {
+        return bucketBy;
+    }
+
+    /**
+     * @param bucketBy
+     *            top level field to group events into buckets by, e.g. logger or tag.
+     */
+    public void setBucketBy(final String bucketBy) {
+        this.bucketBy = bucketBy;
+    }
+}
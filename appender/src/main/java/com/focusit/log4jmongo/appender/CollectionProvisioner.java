@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.LogLog;
+import org.bson.Document;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * Creates the event collection and its indexes. Every step is idempotent: an existing collection is
+ * left as it is, and creating an existing index is a no-op on the server.
+ * <p>
+ * The index set is the minimal one for the queries in USAGE.md, recent events and recent events
+ * of some levels:
+ *
+ * <pre>
+ * { timestamp : -1 }              (TTL index if expireAfterSeconds is set)
+ * { level : 1, timestamp : -1 }
+ * </pre>
+ *
+ * Single field indexes on level or method are left out, they are hardly selective and slow down
+ * every insert. In bucket mode the same indexes are built on the bucket fields.
+ */
+public class CollectionProvisioner {
+    private static final int NAMESPACE_EXISTS = 48;
+
+    private final MongoDatabase database;
+    private long cappedSize = 0;
+    private long expireAfterSeconds = 0;
+    private String blockCompressor = null;
+
+    /**
+     * @param database
+     *            database to create collections in
+     */
+    public CollectionProvisioner(final MongoDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * @return index keys for event documents.
+     */
+    public static List<Document> eventIndexes() {
+        return Arrays.asList(new Document("timestamp", -1),
+                new Document("level", 1).append("timestamp", -1));
+    }
+
+    /**
+     * @param bucketBy
+     *            the field events are grouped into buckets by
+     * @return index keys for bucket documents.
+     */
+    public static List<Document> bucketIndexes(final String bucketBy) {
+        return Arrays.asList(new Document("maxTimestamp", -1),
+                new Document(bucketBy, 1).append("maxTimestamp", -1));
+    }
+
+    /**
+     * @param cappedSize
+     *            size of capped collection in bytes, 0 for a regular collection.
+     */
+    public CollectionProvisioner cappedSize(final long cappedSize) {
+        this.cappedSize = cappedSize;
+        return this;
+    }
+
+    /**
+     * @param expireAfterSeconds
+     *            age of documents to remove by the first index, 0 to keep documents.
+     */
+    public CollectionProvisioner expireAfterSeconds(final long expireAfterSeconds) {
+        this.expireAfterSeconds = expireAfterSeconds;
+        return this;
+    }
+
+    /**
+     * @param blockCompressor
+     *            WiredTiger block compressor (snappy, zlib or none), null for server default.
+     */
+    public CollectionProvisioner blockCompressor(final String blockCompressor) {
+        this.blockCompressor = blockCompressor;
+        return this;
+    }
+
+    /**
+     * Creates the collection with configured options unless it exists. Must be done before the
+     * first insert, which would create a regular collection.
+     *
+     * @param name
+     *            collection name
+     */
+    public void createCollection(final String name) {
+        if (cappedSize <= 0 && blockCompressor == null) {
+            return;
+        }
+        for (final String existing : database.listCollectionNames()) {
+            if (existing.equals(name)) {
+                return;
+            }
+        }
+
+        final CreateCollectionOptions options = new CreateCollectionOptions();
+        if (cappedSize > 0) {
+            options.capped(true).sizeInBytes(cappedSize);
+        }
+        if (blockCompressor != null) {
+            options.storageEngineOptions(new Document("wiredTiger",
+                    new Document("configString", "block_compressor=" + blockCompressor)));
+        }
+        try {
+            database.createCollection(name, options);
+        } catch (final MongoCommandException e) {
+            // created by another appender in the meantime
+            if (e.getErrorCode() != NAMESPACE_EXISTS) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Builds indexes in the background on the server, from a daemon thread, so activation does
+     * not wait for the index build. Failures are reported to LogLog, logging works without indexes.
+     *
+     * @param collection
+     *            collection to index
+     * @param keys
+     *            index keys, the first one is used as TTL index if expireAfterSeconds is set
+     */
+    public void createIndexes(final MongoCollection<Document> collection, final List<Document> keys) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < keys.size(); i++) {
+                    final IndexOptions options = new IndexOptions().background(true);
+                    if (i == 0 && expireAfterSeconds > 0) {
+                        if (cappedSize > 0) {
+                            LogLog.warn("TTL index is not supported on capped collection "
+                                    + collection.getNamespace());
+                        } else {
+                            options.expireAfter(expireAfterSeconds, TimeUnit.SECONDS);
+                        }
+                    }
+                    try {
+                        collection.createIndex(keys.get(i), options);
+                    } catch (final MongoException e) {
+                        // e.g. the same index exists with different options
+                        LogLog.warn("Failed to create index " + keys.get(i).toJson() + " on "
+                                + collection.getNamespace() + ": " + e.getMessage());
+                    }
+                }
+            }
+        }, "log4mongo-indexes");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.helpers.LogLog;
+import org.bson.RawBsonDocument;
+
+/**
+ * Bounded queue of encoded events kept outside the Java heap, in a ring of direct memory. The bound
+ * is in bytes, so a burst of large events takes as much memory as a burst of small ones, and a
+ * backlog during a slow write does not grow the old generation. Only the events taken out are
+ * copied back to the heap, a batch at a time.
+ * <p>
+ * Events are stored as their BSON bytes, which start with their own length. An event that does not
+ * fit before the end of the ring goes to its start, the rest of the end is skipped, marked with a
+ * zero length when there is room for one.
+ * <p>
+ * The ring starts small and doubles, up to the capacity, only when events don't fit, so a queue
+ * that keeps up takes little memory. This matters on reconnect, when a new queue fills while the
+ * previous one drains: together they take about the backlog rather than twice the capacity. A
+ * replaced ring is freed by the garbage collector. If direct memory runs out the ring stops
+ * growing and its size becomes the limit. Events larger than the limit are rejected before anything
+ * is allocated or waited for: offer returns false, put throws.
+ * <p>
+ * Only the methods {@link EventBuffer} needs are supported, iteration is not.
+ */
+class DirectEventQueue extends AbstractQueue<RawBsonDocument> implements BlockingQueue<RawBsonDocument> {
+    private static final int INITIAL_SIZE = 1024 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // guarded by lock
+    private ByteBuffer ring;
+    // size the ring may grow to, lowered if direct memory runs out
+    private int limit;
+    private int head = 0;
+    private int tail = 0;
+    private int used = 0;
+    private int count = 0;
+
+    /**
+     * @param capacity
+     *            bytes of direct memory to allocate at most.
+     * @throws OutOfMemoryError
+     *             if the initial ring can't be allocated.
+     */
+    DirectEventQueue(final int capacity) {
+        this.limit = capacity;
+        this.ring = ByteBuffer.allocateDirect(Math.min(capacity, INITIAL_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public boolean offer(final RawBsonDocument event) {
+        final ByteBuffer bytes = event.getByteBuffer().asNIO();
+        lock.lock();
+        try {
+            return bytes.remaining() <= limit && storeOrGrow(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the event is larger than the whole queue.
+     */
+    @Override
+    public void put(final RawBsonDocument event) throws InterruptedException {
+        final ByteBuffer bytes = event.getByteBuffer().asNIO();
+        lock.lockInterruptibly();
+        try {
+            checkSize(bytes);
+            while (!storeOrGrow(bytes)) {
+                notFull.await();
+                // the limit is lowered if direct memory ran out meanwhile
+                checkSize(bytes);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the event is larger than the whole queue.
+     */
+    @Override
+    public boolean offer(final RawBsonDocument event, final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        final ByteBuffer bytes = event.getByteBuffer().asNIO();
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            checkSize(bytes);
+            while (!storeOrGrow(bytes)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+                checkSize(bytes);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public RawBsonDocument poll() {
+        lock.lock();
+        try {
+            return count > 0 ? load() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public RawBsonDocument poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return load();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public RawBsonDocument take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return load();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public RawBsonDocument peek() {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return null;
+            }
+            final int position = skipEnd(head) ? 0 : head;
+            return new RawBsonDocument(read(position));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(final Collection<? super RawBsonDocument> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super RawBsonDocument> target, final int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (count > 0 && drained < maxElements) {
+                target.add(load());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return free bytes, not events.
+     */
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return limit - used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes taken by queued events.
+     */
+    int getUsedBytes() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<RawBsonDocument> iterator() {
+        throw new UnsupportedOperationException("Events in direct memory can not be iterated");
+    }
+
+    /**
+     * Rejects an event that would never fit, it would wait for room forever otherwise.
+     */
+    private void checkSize(final ByteBuffer bytes) {
+        if (bytes.remaining() > limit) {
+            throw new IllegalArgumentException("Event of " + bytes.remaining()
+                    + " bytes does not fit into a queue of " + limit + " bytes");
+        }
+    }
+
+    private boolean storeOrGrow(final ByteBuffer bytes) {
+        return store(bytes) || grow(bytes.remaining()) && store(bytes);
+    }
+
+    /**
+     * Copies an event into the ring if there is room for it.
+     */
+    private boolean store(final ByteBuffer bytes) {
+        final int length = bytes.remaining();
+        final int size = ring.capacity();
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+            used = 0;
+        }
+        int position = -1;
+        if (used == 0 || tail > head) {
+            if (size - tail >= length) {
+                position = tail;
+            } else if (head >= length) {
+                if (size - tail >= 4) {
+                    ring.putInt(tail, 0);
+                }
+                used += size - tail;
+                position = 0;
+            }
+        } else if (head - tail >= length) {
+            position = tail;
+        }
+        if (position < 0) {
+            return false;
+        }
+
+        ring.position(position);
+        ring.put(bytes);
+        tail = position + length;
+        used += length;
+        count++;
+        notEmpty.signal();
+        return true;
+    }
+
+    /**
+     * Moves queued events in order to the start of a larger ring, with room for an event of the
+     * length after them.
+     *
+     * @return false if the ring can't grow any more.
+     */
+    private boolean grow(final int length) {
+        int size = ring.capacity();
+        if (size >= limit) {
+            return false;
+        }
+        // events take less than used when the end of the ring is skipped
+        while (size - used < length && size < limit) {
+            size = (int) Math.min(limit, size * 2L);
+        }
+        final ByteBuffer next;
+        try {
+            next = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (final OutOfMemoryError e) {
+            limit = ring.capacity();
+            LogLog.warn("Out of direct memory, event queue stays at " + limit + " bytes", e);
+            // waiting events larger than the new limit give up
+            notFull.signalAll();
+            return false;
+        }
+        int position = head;
+        for (int i = 0; i < count; i++) {
+            if (skipEnd(position)) {
+                position = 0;
+            }
+            final ByteBuffer event = ring.duplicate();
+            event.limit(position + ring.getInt(position)).position(position);
+            position = event.limit();
+            next.put(event);
+        }
+        ring = next;
+        head = 0;
+        tail = next.position();
+        used = tail;
+        return true;
+    }
+
+    /**
+     * Copies the head event out of the ring.
+     */
+    private RawBsonDocument load() {
+        if (skipEnd(head)) {
+            used -= ring.capacity() - head;
+            head = 0;
+        }
+        final byte[] bytes = read(head);
+        head += bytes.length;
+        used -= bytes.length;
+        count--;
+        notFull.signalAll();
+        return new RawBsonDocument(bytes);
+    }
+
+    /**
+     * @return true if the event after the position is at the start of the ring.
+     */
+    private boolean skipEnd(final int position) {
+        return ring.capacity() - position < 4 || ring.getInt(position) == 0;
+    }
+
+    private byte[] read(final int position) {
+        final byte[] bytes = new byte[ring.getInt(position)];
+        ring.position(position);
+        ring.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+/**
+ * Packs events into bucket documents, one open bucket per (group, host, time slice), where group is
+ * the value of a top level field of the event, the logger by default. Events logged while the host
+ * is still resolved (see {@link HostInfo}) don't share a bucket with those logged after:
+ *
+ * <pre>
+ * {
+ *   "_id"          : ObjectId("..."),
+ *   "logger"       : "org.log4mongo.TestMongoDbAppender",
+ *   "host"         : { "process" : "...", "name" : "...", "ip" : "..." },
+ *   "slice"        : ISODate("2015-07-01T10:15:00Z"),
+ *   "minTimestamp" : ISODate("2015-07-01T10:15:02.120Z"),
+ *   "maxTimestamp" : ISODate("2015-07-01T10:15:03.401Z"),
+ *   "count"        : 120,
+ *   "levels"       : { "INFO" : 118, "ERROR" : 2 },
+ *   "events"       : [ { "timestamp" : ..., "level" : ..., "message" : ..., ... }, ... ]
+ * }
+ * </pre>
+ *
+ * Fields shared by the bucket (_id, host, the group field and the loggerName derived from the
+ * logger) are removed from the events. A bucket is sealed and passed on when it holds size events,
+ * when the next event would take it over maxBytes, or when its first event is older than age
+ * milliseconds. Bytes are estimated by characters, so UTF-8 text may take up to three times as much.
+ * <p>
+ * Buckets are sealed under the lock but passed to the listener outside of it, so a slow listener
+ * holds up only the thread that sealed the bucket.
+ */
+class EventBuckets {
+    private static final String KEY_HOST = "host";
+    private static final String KEY_LOGGER = "logger";
+    private static final String KEY_LOGGER_NAME = "loggerName";
+    private static final String KEY_TIMESTAMP = "timestamp";
+    private static final String KEY_LEVEL = "level";
+
+    /**
+     * Receives sealed buckets.
+     */
+    interface Listener {
+        void sealed(Document bucket);
+    }
+
+    private final int size;
+    private final long maxBytes;
+    private final long age;
+    private final long slice;
+    private final String groupBy;
+    private final Listener listener;
+    private final Map<String, Bucket> open = new HashMap<String, Bucket>();
+    private final Timer timer;
+
+    /**
+     * @param size
+     *            number of events to seal a bucket at
+     * @param maxBytes
+     *            estimated size of events a bucket may hold
+     * @param age
+     *            milliseconds after the first event to seal a bucket at, 0 to seal by size only
+     * @param slice
+     *            length of time slice in milliseconds, events of different slices never share a
+     *            bucket
+     * @param groupBy
+     *            top level field to group events by
+     * @param listener
+     *            receiver of sealed buckets
+     */
+    EventBuckets(final int size, final long maxBytes, final long age, final long slice,
+            final String groupBy, final Listener listener) {
+        this.size = Math.max(1, size);
+        this.maxBytes = maxBytes;
+        this.age = age;
+        this.slice = Math.max(1, slice);
+        this.groupBy = groupBy;
+        this.listener = listener;
+
+        if (age > 0) {
+            timer = new Timer("log4mongo-buckets", true);
+            final long period = Math.max(10, age / 4);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    sealExpired(System.currentTimeMillis());
+                }
+            }, period, period);
+        } else {
+            timer = null;
+        }
+    }
+
+    void add(final Document event) {
+        final Object group = event.get(groupBy);
+        final Date timestamp = event.getDate(KEY_TIMESTAMP);
+        final long time = timestamp != null ? timestamp.getTime() : System.currentTimeMillis();
+        final long sliceStart = time - time % slice;
+        final Object host = event.get(KEY_HOST);
+        final String key = String.valueOf(group) + '\u0000' + host + '\u0000' + sliceStart;
+        // read before compact(), which removes the level when events are grouped by it
+        final String level = event.getString(KEY_LEVEL);
+        final Document compacted = compact(event);
+        final long bytes = estimate(compacted);
+
+        Bucket full = null;
+        Bucket sealed = null;
+        synchronized (this) {
+            Bucket bucket = open.get(key);
+            if (bucket != null && bucket.bytes + bytes > maxBytes) {
+                full = bucket;
+                bucket = null;
+            }
+            if (bucket == null) {
+                bucket = new Bucket(group, host, sliceStart);
+                open.put(key, bucket);
+            }
+            bucket.add(compacted, bytes, time, level);
+            if (bucket.events.size() >= size || bucket.bytes >= maxBytes) {
+                open.remove(key);
+                sealed = bucket;
+            }
+        }
+        if (full != null) {
+            listener.sealed(full.toDocument());
+        }
+        if (sealed != null) {
+            listener.sealed(sealed.toDocument());
+        }
+    }
+
+    void sealExpired(final long now) {
+        final List<Bucket> expired = new ArrayList<Bucket>();
+        synchronized (this) {
+            final Iterator<Bucket> buckets = open.values().iterator();
+            while (buckets.hasNext()) {
+                final Bucket bucket = buckets.next();
+                if (now - bucket.opened >= age) {
+                    buckets.remove();
+                    expired.add(bucket);
+                }
+            }
+        }
+        for (final Bucket bucket : expired) {
+            listener.sealed(bucket.toDocument());
+        }
+    }
+
+    /**
+     * Seals all open buckets and stops sealing by age.
+     */
+    void close() {
+        if (timer != null) {
+            timer.cancel();
+        }
+        final List<Bucket> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<Bucket>(open.values());
+            open.clear();
+        }
+        for (final Bucket bucket : remaining) {
+            listener.sealed(bucket.toDocument());
+        }
+    }
+
+    /**
+     * @return rough encoded size of a value, a byte per character of text
+     */
+    private static long estimate(final Object value) {
+        if (value instanceof String) {
+            return ((String) value).length() + 5;
+        }
+        if (value instanceof Map) {
+            long bytes = 5;
+            for (final Map.Entry<?, ?> field : ((Map<?, ?>) value).entrySet()) {
+                bytes += String.valueOf(field.getKey()).length() + 2 + estimate(field.getValue());
+            }
+            return bytes;
+        }
+        if (value instanceof Iterable) {
+            long bytes = 5;
+            for (final Object item : (Iterable<?>) value) {
+                bytes += 6 + estimate(item);
+            }
+            return bytes;
+        }
+        if (value instanceof Binary) {
+            return ((Binary) value).length() + 5;
+        }
+        return 8;
+    }
+
+    private Document compact(final Document event) {
+        event.remove("_id");
+        event.remove(KEY_HOST);
+        event.remove(groupBy);
+        if (KEY_LOGGER.equals(groupBy)) {
+            event.remove(KEY_LOGGER_NAME);
+        }
+        return event;
+    }
+
+    private class Bucket {
+        private final Object group;
+        private final Object host;
+        private final long sliceStart;
+        private final long opened = System.currentTimeMillis();
+        private final List<Document> events = new ArrayList<Document>();
+        private long bytes = 0;
+        private final Map<String, Integer> levels = new HashMap<String, Integer>();
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
+
+        Bucket(final Object group, final Object host, final long sliceStart) {
+            this.group = group;
+            this.host = host;
+            this.sliceStart = sliceStart;
+        }
+
+        void add(final Document event, final long eventBytes, final long time, final String level) {
+            events.add(event);
+            bytes += eventBytes;
+            minTimestamp = Math.min(minTimestamp, time);
+            maxTimestamp = Math.max(maxTimestamp, time);
+            if (level != null) {
+                final Integer count = levels.get(level);
+                levels.put(level, count == null ? 1 : count + 1);
+            }
+        }
+
+        Document toDocument() {
+            final Document bucket = new Document(groupBy, group);
+            if (host != null) {
+                bucket.put(KEY_HOST, host);
+            }
+            bucket.append("slice", new Date(sliceStart))
+                    .append("minTimestamp", new Date(minTimestamp))
+                    .append("maxTimestamp", new Date(maxTimestamp))
+                    .append("count", events.size())
+                    .append("levels", new Document(new HashMap<String, Object>(levels)))
+                    .append("events", events);
+            return bucket;
+        }
+    }
+}
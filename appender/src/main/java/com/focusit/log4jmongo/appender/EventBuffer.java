@@ -0,0 +1,411 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.ErrorHandler;
+import org.bson.RawBsonDocument;
+
+import com.focusit.log4jmongo.appender.sink.EventSink;
+
+/**
+ * Buffering, batching and retrying in front of an {@link EventSink}.
+ * <p>
+ * With a capacity of 0 every event is written by the calling thread. Otherwise events are put into
+ * a bounded queue and a single flusher thread takes whatever is queued, up to batchSize events,
+ * and writes it as one batch, so batches grow by themselves when events come faster than the sink
+ * takes them. When the queue is full the caller either waits or the event is dropped and counted,
+ * callers never wait before the sink is opened, as it may never be.
+ * Given a memory budget instead, the queue keeps encoded events in direct memory, bounded by bytes
+ * rather than events (see {@link DirectEventQueue}).
+ * <p>
+ * A batch which the sink failed to store is retried with a growing delay, then counted as failed
+ * and reported to the error handler.
+ * <p>
+ * The sink is opened by a background thread, retried until it succeeds, so neither a slow DNS nor
+ * an unavailable server delays the application startup. Events appended meanwhile wait in the
+ * queue, or in a startup queue of startupCapacity events when writing on the calling thread.
+ */
+public class EventBuffer {
+
+    /**
+     * Receives state changes of the buffer, called from the thread that caused them.
+     */
+    public interface Listener {
+        /**
+         * The sink is opened and events are being written.
+         */
+        void opened(EventBuffer buffer);
+
+        /**
+         * A batch failed after all retries.
+         *
+         * @param consecutiveFailures
+         *            number of batches failed in a row including this one
+         */
+        void failed(EventBuffer buffer, int consecutiveFailures);
+    }
+
+    private static final long POLL_INTERVAL = 100;
+    private static final long CLOSE_TIMEOUT = 10000;
+    private static final long OPEN_RETRY_DELAY = 1000;
+    private static final long MAX_OPEN_RETRY_DELAY = 30000;
+
+    private final EventSink sink;
+    private final BlockingQueue<RawBsonDocument> queue;
+    private final int batchSize;
+    private final int maxRetries;
+    private final long retryDelay;
+    private final boolean blocking;
+    private final ErrorHandler errorHandler;
+    private final Listener listener;
+    private final Thread worker;
+    // events appended before the sink is opened when writing on the calling thread
+    private final BlockingQueue<RawBsonDocument> startup;
+    private final Object openLock = new Object();
+
+    private volatile boolean closed = false;
+    private volatile boolean opened = false;
+    // set when close() gave up waiting for the worker
+    private volatile boolean abandoned = false;
+    private final AtomicBoolean sinkClosed = new AtomicBoolean();
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    /**
+     * @param sink
+     *            sink to open and write events to <i>(must not be null)</i>.
+     * @param capacity
+     *            number of events to queue, 0 to write on the calling thread
+     * @param memory
+     *            bytes of direct memory to queue events in, overrides capacity if greater than 0
+     * @param startupCapacity
+     *            number of events to keep till the sink is opened when capacity is 0
+     * @param batchSize
+     *            maximum number of events in a batch
+     * @param maxRetries
+     *            number of times a failed batch is written again
+     * @param retryDelay
+     *            delay before the first retry in milliseconds, it grows with every retry
+     * @param blocking
+     *            whether a caller waits for free space in a full queue or the event is dropped
+     * @param errorHandler
+     *            handler to report failed batches to
+     * @param listener
+     *            receiver of state changes <i>(may be null)</i>.
+     */
+    public EventBuffer(final EventSink sink, final int capacity, final long memory,
+            final int startupCapacity, final int batchSize, final int maxRetries, final long retryDelay,
+            final boolean blocking, final ErrorHandler errorHandler, final Listener listener) {
+        assert sink != null : "sink must not be null";
+
+        this.sink = sink;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryDelay = retryDelay;
+        this.blocking = blocking;
+        this.errorHandler = errorHandler;
+        this.listener = listener;
+
+        if (capacity > 0 || memory > 0) {
+            queue = memory > 0 ? new DirectEventQueue((int) Math.min(memory, Integer.MAX_VALUE))
+                    : new ArrayBlockingQueue<RawBsonDocument>(capacity);
+            startup = null;
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (open()) {
+                            opened();
+                            flush();
+                        }
+                    } finally {
+                        if (closed) {
+                            closeSink();
+                        }
+                    }
+                }
+            }, "log4mongo-flusher");
+        } else {
+            queue = null;
+            startup = new ArrayBlockingQueue<RawBsonDocument>(Math.max(1, startupCapacity));
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (open()) {
+                            writeStartup();
+                            opened();
+                        }
+                    } finally {
+                        if (closed) {
+                            closeSink();
+                        }
+                    }
+                }
+            }, "log4mongo-opener");
+        }
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @param event
+     *            encoded event to write <i>(must not be null)</i>.
+     */
+    public void add(final RawBsonDocument event) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (queue == null) {
+            if (!opened) {
+                synchronized (openLock) {
+                    if (!opened) {
+                        if (!startup.offer(event)) {
+                            dropped.incrementAndGet();
+                        }
+                        return;
+                    }
+                }
+            }
+            write(Collections.singletonList(event));
+            return;
+        }
+        if (blocking && opened) {
+            try {
+                queue.put(event);
+            } catch (final InterruptedException e) {
+                dropped.incrementAndGet();
+                Thread.currentThread().interrupt();
+            } catch (final IllegalArgumentException e) {
+                // larger than the whole memory budget
+                dropped.incrementAndGet();
+            }
+        } else if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops accepting events, writes out the queued ones and closes the sink. A worker still
+     * writing after the timeout is interrupted and left to close the sink itself, the sink is not
+     * closed under a write in progress.
+     */
+    public void close() {
+        closed = true;
+        if (!opened) {
+            // wake the worker up from waiting to retry opening
+            worker.interrupt();
+        }
+        try {
+            worker.join(CLOSE_TIMEOUT);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            errorHandler.error("Gave up waiting for " + getQueued()
+                    + " queued event(s) to be written", null, ErrorCode.CLOSE_FAILURE);
+            abandoned = true;
+            worker.interrupt();
+        } else {
+            closeSink();
+        }
+        if (!opened) {
+            // never opened, nothing was written
+            dropped.addAndGet(getQueued());
+        }
+    }
+
+    private void closeSink() {
+        if (sinkClosed.compareAndSet(false, true)) {
+            sink.close();
+        }
+    }
+
+    /**
+     * Opens the sink, retrying with a growing delay until it succeeds or the buffer is closed.
+     */
+    private boolean open() {
+        long delay = OPEN_RETRY_DELAY;
+        boolean reported = false;
+        while (!closed) {
+            try {
+                sink.open();
+                if (queue != null) {
+                    opened = true;
+                }
+                return true;
+            } catch (final Exception e) {
+                if (!reported) {
+                    errorHandler.error("Failed to open " + sink.getClass().getSimpleName()
+                            + ", retrying in background", e, ErrorCode.GENERIC_FAILURE);
+                    reported = true;
+                }
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (final InterruptedException e) {
+                // closing is signalled by the flag
+            }
+            delay = Math.min(delay * 2, MAX_OPEN_RETRY_DELAY);
+        }
+        return false;
+    }
+
+    private void opened() {
+        if (listener != null) {
+            listener.opened(this);
+        }
+    }
+
+    /**
+     * Writes events appended before the sink was opened, then lets callers write directly.
+     */
+    private void writeStartup() {
+        final List<RawBsonDocument> batch = new ArrayList<RawBsonDocument>(batchSize);
+        synchronized (openLock) {
+            while (startup.drainTo(batch, batchSize) > 0) {
+                write(batch);
+                batch.clear();
+            }
+            opened = true;
+        }
+    }
+
+    private void flush() {
+        final List<RawBsonDocument> batch = new ArrayList<RawBsonDocument>(batchSize);
+        while ((!closed || !queue.isEmpty()) && !abandoned) {
+            try {
+                final RawBsonDocument first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                write(batch);
+            } catch (final InterruptedException e) {
+                // closing is signalled by the flags, keep draining unless abandoned
+            } finally {
+                batch.clear();
+            }
+        }
+        if (abandoned) {
+            dropped.addAndGet(queue.size());
+            queue.clear();
+        }
+    }
+
+    private void write(final List<RawBsonDocument> batch) {
+        Exception failure = null;
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                retries.incrementAndGet();
+                try {
+                    Thread.sleep(retryDelay * attempt);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            try {
+                sink.write(batch);
+                written.addAndGet(batch.size());
+                consecutiveFailures.set(0);
+                return;
+            } catch (final Exception e) {
+                failure = e;
+            }
+        }
+        failed.addAndGet(batch.size());
+        errorHandler.error("Failed to write " + batch.size() + " event(s)", failure,
+                ErrorCode.WRITE_FAILURE);
+        final int failures = consecutiveFailures.incrementAndGet();
+        if (listener != null) {
+            listener.failed(this, failures);
+        }
+    }
+
+    /**
+     * @return the sink events are written to.
+     */
+    public EventSink getSink() {
+        return sink;
+    }
+
+    /**
+     * @return number of events waiting to be written.
+     */
+    public int getQueued() {
+        return queue == null ? startup.size() : queue.size();
+    }
+
+    /**
+     * @return bytes of direct memory taken by queued events, 0 unless queued in direct memory.
+     */
+    public long getQueuedBytes() {
+        return queue instanceof DirectEventQueue ? ((DirectEventQueue) queue).getUsedBytes() : 0;
+    }
+
+    /**
+     * @return true when the sink is opened and events are being written.
+     */
+    public boolean isOpened() {
+        return opened;
+    }
+
+    /**
+     * @return number of events stored by the sink.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return number of events dropped because the queue was full or the buffer was closed.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of events the sink failed to store after all retries.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return number of times a batch was written again.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender;
+
+import java.io.File;
+import java.util.Locale;
+
+import org.apache.log4j.helpers.OptionConverter;
+
+import com.focusit.log4jmongo.appender.sink.EventSink;
+import com.focusit.log4jmongo.appender.sink.FileSink;
+
+/**
+ * Log4J Appender that writes BSONed events to local rolling files instead of MongoDB, e.g. on
+ * hosts without access to the server. Files are loaded later with mongorestore (bson format) or
+ * mongoimport (json format).
+ *
+ * <pre>
+ * log4j.appender.File=com.focusit.log4jmongo.appender.FileBsonAppender
+ * log4j.appender.File.directory=logs
+ * log4j.appender.File.filePrefix=logevents
+ * log4j.appender.File.format=bson
+ * log4j.appender.File.maxFileSize=64MB
+ * log4j.appender.File.fsyncInterval=0
+ * </pre>
+ *
+ * @see FileSink
+ */
+public class FileBsonAppender extends BufferedBsonAppender {
+    private String directory = "logs";
+    private String filePrefix = "logevents";
+    private String format = "bson";
+    private long maxFileSize = 64 * 1024 * 1024;
+    private long fsyncInterval = 0;
+
+    @Override
+    protected EventSink createSink() {
+        return new FileSink(new File(directory), filePrefix,
+                FileSink.Format.valueOf(format.trim().toUpperCase(Locale.ENGLISH)), maxFileSize,
+                fsyncInterval);
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param directory
+     *            directory to write files to <i>(created if missing)</i>.
+     */
+    public void setDirectory(final String directory) {
+        this.directory = directory;
+    }
+
+    public String getFilePrefix() {
+        return filePrefix;
+    }
+
+    public void setFilePrefix(final String filePrefix) {
+        this.filePrefix = filePrefix;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @param format
+     *            bson or json.
+     */
+    public void setFormat(final String format) {
+        this.format = format;
+    }
+
+    public long getMaximumFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * @param value
+     *            size to roll files over after, with optional KB, MB or GB suffix.
+     */
+    public void setMaxFileSize(final String value) {
+        maxFileSize = OptionConverter.toFileSize(value, maxFileSize + 1);
+    }
+
+    public long getFsyncInterval() {
+        return fsyncInterval;
+    }
+
+    /**
+     * @param fsyncInterval
+     *            milliseconds to keep between fsyncs, 0 to sync as soon as a batch is written, negative
+     *            to leave it to the OS. A batch is acknowledged once it is synced, see
+     *            {@link FileSink}.
+     */
+    public void setFsyncInterval(final long fsyncInterval) {
+        this.fsyncInterval = fsyncInterval;
+    }
+}
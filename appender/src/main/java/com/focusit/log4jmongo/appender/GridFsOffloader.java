@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.helpers.LogLog;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.DocumentCodec;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSInputFile;
+
+/**
+ * Moves oversized text fields of an event to GridFS. A field longer than the threshold is replaced
+ * by its first previewSize characters and the full text is streamed to a GridFS file, gzipped if
+ * configured. The event keeps a reference to the file:
+ *
+ * <pre>
+ * {
+ *   "message"   : "&lt;first previewSize characters&gt;",
+ *   "offloaded" : {
+ *                   "message" : { "file" : ObjectId("..."), "length" : 5242880, "gzip" : true }
+ *                 },
+ *   ...
+ * }
+ * </pre>
+ *
+ * When stacktraces is offloaded the structured throwables array, which holds the same frames, is
+ * dropped. If the file can't be stored the field is still truncated, so the event fits into a
+ * document.
+ * <p>
+ * The appender offloads encoded batches on the thread writing them, to the cluster they are
+ * written to, so logging threads never wait for GridFS.
+ */
+class GridFsOffloader {
+    private static final String[] FIELDS = { "message", "stacktraces" };
+    private static final String KEY_THROWABLES = "throwables";
+    private static final String KEY_OFFLOADED = "offloaded";
+    private static final String KEY_EVENTS = "events";
+
+    private static final DocumentCodec CODEC = new DocumentCodec(MongoClient.getDefaultCodecRegistry(),
+            new BsonTypeClassMap());
+
+    private final DB db;
+    private final String bucket;
+    private final int threshold;
+    private final int previewSize;
+    private final boolean compress;
+    private volatile GridFS gridFs = null;
+
+    /**
+     * @param db
+     *            database of GridFS bucket
+     * @param bucket
+     *            GridFS bucket name
+     * @param threshold
+     *            size of field in bytes to offload it from
+     * @param previewSize
+     *            number of characters to keep in the event
+     * @param compress
+     *            whether to gzip files
+     */
+    GridFsOffloader(final DB db, final String bucket, final int threshold, final int previewSize,
+            final boolean compress) {
+        this.db = db;
+        this.bucket = bucket;
+        this.threshold = threshold;
+        this.previewSize = Math.min(previewSize, threshold);
+        this.compress = compress;
+    }
+
+    /**
+     * Offloads oversized fields of the events of a batch, including events of buckets. Only
+     * documents larger than the threshold are decoded and encoded again, a batch retried after a
+     * failed insert stores its files once more.
+     *
+     * @param batch
+     *            encoded events to write <i>(must not be null)</i>.
+     * @return the batch, or a copy of it with the offloaded events replaced.
+     */
+    List<RawBsonDocument> offload(final List<RawBsonDocument> batch) {
+        List<RawBsonDocument> result = batch;
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i).getByteBuffer().remaining() <= threshold) {
+                continue;
+            }
+            final Document event = batch.get(i).decode(CODEC);
+            boolean changed = offload(event);
+            final Object events = event.get(KEY_EVENTS);
+            if (events instanceof List) {
+                for (final Object bucketed : (List<?>) events) {
+                    if (bucketed instanceof Document) {
+                        changed |= offload((Document) bucketed);
+                    }
+                }
+            }
+            if (changed) {
+                if (result == batch) {
+                    result = new ArrayList<RawBsonDocument>(batch);
+                }
+                result.set(i, new RawBsonDocument(event, CODEC));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Offloads oversized fields of the event in place. Safe to call from several threads.
+     *
+     * @param event
+     *            event to check <i>(must not be null)</i>.
+     * @return true if a field was offloaded.
+     */
+    boolean offload(final Document event) {
+        Document offloaded = null;
+        for (final String field : FIELDS) {
+            final Object value = event.get(field);
+            // chars take at least a byte, so short values are skipped without encoding them
+            if (!(value instanceof String) || ((String) value).length() * 3 <= threshold) {
+                continue;
+            }
+            final String text = (String) value;
+            final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length <= threshold) {
+                continue;
+            }
+
+            final Document reference = new Document("length", bytes.length);
+            try {
+                reference.append("file", store(field, bytes)).append("gzip", compress);
+            } catch (final IOException | MongoException e) {
+                LogLog.warn("Failed to store " + field + " of " + bytes.length
+                        + " bytes to GridFS, it is truncated", e);
+            }
+            event.put(field, text.substring(0, previewSize));
+            if (offloaded == null) {
+                offloaded = new Document();
+                event.put(KEY_OFFLOADED, offloaded);
+            }
+            offloaded.put(field, reference);
+            if ("stacktraces".equals(field)) {
+                event.remove(KEY_THROWABLES);
+            }
+        }
+        return offloaded != null;
+    }
+
+    private Object store(final String field, final byte[] bytes) throws IOException {
+        final GridFSInputFile file = getGridFs().createFile(field + (compress ? ".txt.gz" : ".txt"));
+        file.setContentType(compress ? "application/gzip" : "text/plain; charset=UTF-8");
+        file.setMetaData(new BasicDBObject("field", field).append("length", bytes.length));
+        // file and chunks are written as the stream is, without another copy of the payload
+        OutputStream out = file.getOutputStream();
+        if (compress) {
+            out = new GZIPOutputStream(out, 64 * 1024);
+        }
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file.getId();
+    }
+
+    /**
+     * GridFS creates its indexes when constructed, so it is not done before the first oversized
+     * event.
+     */
+    private GridFS getGridFs() {
+        if (gridFs == null) {
+            synchronized (this) {
+                if (gridFs == null) {
+                    gridFs = new GridFS(db, bucket);
+                }
+            }
+        }
+        return gridFs;
+    }
+}
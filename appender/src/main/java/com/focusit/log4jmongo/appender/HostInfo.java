@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.helpers.LogLog;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Host name, IP address and process name of this JVM, resolved once per JVM on a background
+ * thread. Both InetAddress.getLocalHost() and the runtime name (pid@host) may wait for DNS for
+ * many seconds on hosts with broken name resolution, so until they are known events get a
+ * placeholder with the name from the environment.
+ */
+final class HostInfo {
+    private static final String KEY_PROCESS = "process";
+    private static final String KEY_HOSTNAME = "name";
+    private static final String KEY_IP = "ip";
+
+    private static final AtomicBoolean resolving = new AtomicBoolean();
+    private static volatile DBObject info = placeholder();
+
+    private HostInfo() {
+    }
+
+    /**
+     * @return host info, a placeholder until it is resolved <i>(will not be null, must not be
+     *         modified)</i>.
+     */
+    static DBObject get() {
+        if (resolving.compareAndSet(false, true)) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    info = resolve();
+                }
+            }, "log4mongo-host");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return info;
+    }
+
+    private static DBObject placeholder() {
+        final DBObject result = new BasicDBObject();
+        String name = System.getenv("HOSTNAME");
+        if (name == null) {
+            name = System.getenv("COMPUTERNAME");
+        }
+        result.put(KEY_HOSTNAME, name != null ? name : "localhost");
+        return result;
+    }
+
+    private static DBObject resolve() {
+        final DBObject result = new BasicDBObject();
+        result.put(KEY_PROCESS, ManagementFactory.getRuntimeMXBean().getName());
+        try {
+            final InetAddress localHost = InetAddress.getLocalHost();
+            result.put(KEY_HOSTNAME, localHost.getHostName());
+            result.put(KEY_IP, localHost.getHostAddress());
+        } catch (final UnknownHostException e) {
+            LogLog.warn(e.getMessage());
+            result.put(KEY_HOSTNAME, info.get(KEY_HOSTNAME));
+        }
+        return result;
+    }
+}
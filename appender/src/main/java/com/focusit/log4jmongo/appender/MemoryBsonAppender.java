@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender;
+
+import com.focusit.log4jmongo.appender.sink.EventSink;
+import com.focusit.log4jmongo.appender.sink.MemorySink;
+
+/**
+ * Log4J Appender that keeps BSONed events in memory. Useful in tests of logging code and to
+ * measure conversion and buffering overhead without a MongoDB server.
+ */
+public class MemoryBsonAppender extends BufferedBsonAppender {
+    private boolean retain = true;
+    private MemorySink sink = null;
+
+    @Override
+    protected EventSink createSink() {
+        sink = new MemorySink(retain);
+        return sink;
+    }
+
+    /**
+     * @return sink of the current activation <i>(null if not activated)</i>.
+     */
+    public MemorySink getSink() {
+        return sink;
+    }
+
+    public boolean isRetain() {
+        return retain;
+    }
+
+    /**
+     * @param retain
+     *            false to only count events instead of keeping them.
+     */
+    public void setRetain(final boolean retain) {
+        this.retain = retain;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.ErrorHandler;
+import org.bson.Document;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Per minute event counters by level, logger and tag, flushed periodically as $inc upserts into a
+ * rollup collection:
+ *
+ * <pre>
+ * {
+ *   "_id"    : { "minute" : ISODate("2015-07-01T10:15:00Z"), "level" : "ERROR", "logger" : "...", "tag" : "..." },
+ *   "minute" : ISODate("2015-07-01T10:15:00Z"),
+ *   "level"  : "ERROR",
+ *   "logger" : "...",
+ *   "tag"    : "...",
+ *   "count"  : 42
+ * }
+ * </pre>
+ *
+ * The number of counters is bounded by maxKeys: once reached, events of new loggers are counted
+ * under the {@value #OTHER_LOGGER} logger. Counters of past minutes are written and dropped, a late
+ * increment of a dropped counter is picked up by the next flush. Counts of a failed flush are put
+ * back within the same bound, counts that don't fit are dropped and reported.
+ */
+class RollupCounters {
+    static final String OTHER_LOGGER = "_other";
+    private static final long MINUTE = 60000;
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+    private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+
+    private volatile MongoCollection<Document> collection;
+    private final int maxKeys;
+    private final ErrorHandler errorHandler;
+    private final ConcurrentMap<Key, AtomicLong> counters = new ConcurrentHashMap<Key, AtomicLong>();
+    private final Map<Key, AtomicLong> retired = new ConcurrentHashMap<Key, AtomicLong>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Timer timer;
+
+    /**
+     * @param collection
+     *            rollup collection <i>(may be null to keep counting till it is set)</i>.
+     * @param interval
+     *            milliseconds between flushes
+     * @param maxKeys
+     *            maximum number of counters
+     * @param errorHandler
+     *            handler to report failed flushes to
+     */
+    RollupCounters(final MongoCollection<Document> collection, final long interval, final int maxKeys,
+            final ErrorHandler errorHandler) {
+        this.collection = collection;
+        this.maxKeys = maxKeys;
+        this.errorHandler = errorHandler;
+
+        timer = new Timer("log4mongo-rollup", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush(System.currentTimeMillis());
+            }
+        }, interval, interval);
+    }
+
+    /**
+     * Counts an event. Appends are serialized by the appender, so a plain atomic counter per key is
+     * not contended.
+     */
+    void count(final long timestamp, final String level, final String logger, final String tag) {
+        final long minute = timestamp - timestamp % MINUTE;
+        Key key = new Key(minute, level, logger, tag);
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            if (counters.size() >= maxKeys) {
+                key = new Key(minute, level, OTHER_LOGGER, tag);
+            }
+            counter = counters.get(key);
+            if (counter == null) {
+                final AtomicLong created = new AtomicLong();
+                counter = counters.putIfAbsent(key, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    void setCollection(final MongoCollection<Document> collection) {
+        this.collection = collection;
+    }
+
+    synchronized void flush(final long now) {
+        final MongoCollection<Document> collection = this.collection;
+        if (collection == null) {
+            return;
+        }
+        final long currentMinute = now - now % MINUTE;
+        final List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>();
+        final Map<Key, Long> counts = new HashMap<Key, Long>();
+
+        // late increments of counters dropped by the previous flush
+        collect(retired.entrySet().iterator(), counts);
+        retired.clear();
+        final Iterator<Map.Entry<Key, AtomicLong>> entries = counters.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Key, AtomicLong> entry = entries.next();
+            if (entry.getKey().minute < currentMinute) {
+                entries.remove();
+                retired.put(entry.getKey(), entry.getValue());
+            }
+        }
+        collect(counters.entrySet().iterator(), counts);
+        collect(retired.entrySet().iterator(), counts);
+
+        for (final Map.Entry<Key, Long> count : counts.entrySet()) {
+            final Key key = count.getKey();
+            final Document id = key.toDocument();
+            final Document update = new Document("$inc", new Document("count", count.getValue()))
+                    .append("$setOnInsert", key.toDocument());
+            updates.add(new UpdateOneModel<Document>(new Document("_id", id), update, UPSERT));
+        }
+        if (updates.isEmpty()) {
+            return;
+        }
+        try {
+            collection.bulkWrite(updates, UNORDERED);
+        } catch (final MongoException e) {
+            // put counts back to write them with the next flush
+            long lost = 0;
+            for (final Map.Entry<Key, Long> count : counts.entrySet()) {
+                if (!putBack(count.getKey(), count.getValue())) {
+                    lost += count.getValue();
+                }
+            }
+            dropped.addAndGet(lost);
+            errorHandler.error("Failed to update " + updates.size() + " rollup counter(s)"
+                    + (lost > 0 ? ", dropped " + lost + " count(s) over rollupMaxKeys" : ""), e,
+                    ErrorCode.WRITE_FAILURE);
+        }
+    }
+
+    /**
+     * Adds a count to its counter, or to the {@value #OTHER_LOGGER} counter of its minute once there
+     * are maxKeys counters, so an outage doesn't grow the counters with every minute.
+     *
+     * @return false if neither counter exists and there is no room for another one
+     */
+    private boolean putBack(final Key key, final long value) {
+        Key target = key;
+        AtomicLong counter = counters.get(target);
+        if (counter == null && counters.size() >= maxKeys) {
+            target = new Key(key.minute, key.level, OTHER_LOGGER, key.tag);
+            counter = counters.get(target);
+            if (counter == null) {
+                return false;
+            }
+        }
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(target, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.addAndGet(value);
+        return true;
+    }
+
+    /**
+     * @return counts dropped because flushes failed while there were maxKeys counters
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops periodic flushes and writes the remaining counts.
+     */
+    void close() {
+        timer.cancel();
+        flush(Long.MAX_VALUE);
+    }
+
+    private static void collect(final Iterator<Map.Entry<Key, AtomicLong>> entries,
+            final Map<Key, Long> counts) {
+        while (entries.hasNext()) {
+            final Map.Entry<Key, AtomicLong> entry = entries.next();
+            final long value = entry.getValue().getAndSet(0);
+            if (value > 0) {
+                final Long count = counts.get(entry.getKey());
+                counts.put(entry.getKey(), count == null ? value : count + value);
+            }
+        }
+    }
+
+    private static final class Key {
+        private final long minute;
+        private final String level;
+        private final String logger;
+        private final String tag;
+
+        Key(final long minute, final String level, final String logger, final String tag) {
+            this.minute = minute;
+            this.level = level;
+            this.logger = logger;
+            this.tag = tag;
+        }
+
+        Document toDocument() {
+            return new Document("minute", new Date(minute)).append("level", level)
+                    .append("logger", logger).append("tag", tag);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return minute == other.minute && equal(level, other.level)
+                    && equal(logger, other.logger) && equal(tag, other.tag);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (minute ^ (minute >>> 32));
+            hash = hash * 31 + (level == null ? 0 : level.hashCode());
+            hash = hash * 31 + (logger == null ? 0 : logger.hashCode());
+            return hash * 31 + (tag == null ? 0 : tag.hashCode());
+        }
+
+        private static boolean equal(final String a, final String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -17,15 +17,25 @@
 
 package com.focusit.log4jmongo.appender;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
+import org.apache.log4j.helpers.OptionConverter;
 import org.apache.log4j.spi.ErrorCode;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 
+import com.focusit.log4jmongo.appender.compress.FieldCompressor;
+import com.focusit.log4jmongo.appender.sink.CompressingSink;
+import com.focusit.log4jmongo.appender.sink.EventSink;
+import com.focusit.log4jmongo.appender.sink.FailoverSink;
+import com.focusit.log4jmongo.appender.sink.MongoSink;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
 import com.mongodb.MongoCredential;
-import com.mongodb.MongoException;
 import com.mongodb.ServerAddress;
 import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoCollection;
@@ -36,16 +46,29 @@ import com.mongodb.client.MongoDatabase;
  * fully parsed and stored as structured records in MongoDB (this appender does not require, nor use
  * a Log4J layout).
  *
- * The appender does <u>not</u> create any indexes on the data that's stored - it is assumed that if
- * query performance is required, those would be created externally (e.g., in the MongoDB shell or
- * other external application).
+ * On activation the appender creates the collection (capped and/or with a WiredTiger block
+ * compressor if configured) unless it exists, and builds a minimal index set in the background,
+ * with an optional TTL on the timestamp, see {@link CollectionProvisioner}. Set createIndexes to
+ * false to manage indexes externally.
+ *
+ * By default every event is inserted on the logging thread, set bufferSize to insert events in
+ * batches from a background thread instead (see {@link BufferedBsonAppender}).
+ *
+ * Setting compressThreshold compresses message, stacktraces and throwables of at least that size
+ * by the thread writing a batch, see {@link CompressingSink}. Setting offloadThreshold moves larger message and
+ * stacktraces to GridFS of the cluster a batch is written to, see {@link GridFsOffloader}.
+ *
+ * Fallback clusters are given as MongoDB connection strings in fallbackUris. A batch the cluster
+ * configured by hostname and port fails to insert, or does not insert within failoverLatency, goes
+ * to the first healthy fallback, tagged with the clusterName it was meant for (see
+ * {@link FailoverSink}).
  *
  * @author Peter Monks (pmonks@gmail.com)
  * @see <a href="http://logging.apache.org/log4j/1.2/apidocs/org/apache/log4j/Appender.html">Log4J
  *      Appender Interface</a>
  * @see <a href="http://www.mongodb.org/">MongoDB</a>
  */
-public class SimpleMongoDbAppender extends AbstractBsonAppender {
+public class SimpleMongoDbAppender extends BufferedBsonAppender {
     private final static String DEFAULT_MONGO_DB_HOSTNAME = "localhost";
     private final static String DEFAULT_MONGO_DB_PORT = "27017";
     private final static String DEFAULT_MONGO_DB_DATABASE_NAME = "log4mongo";
@@ -63,26 +86,125 @@ public class SimpleMongoDbAppender extends AbstractBsonAppender {
 	protected MongoClient mongo = null;
 	protected MongoCollection<Document> collection = null;
     private String tag=null;
-
-    protected boolean initialized = false;
+    private String rollupCollectionName = null;
+    private long rollupInterval = 10000;
+    private int rollupMaxKeys = 10000;
+    private RollupCounters rollups = null;
+    private long cappedSize = 0;
+    private long expireAfterSeconds = 0;
+    private String blockCompressor = null;
+    private boolean createIndexes = true;
+    private long offloadThreshold = 0;
+    private int offloadPreviewSize = 1024;
+    private String offloadBucket = "logfs";
+    private boolean offloadCompress = true;
+    private long compressThreshold = 0;
+    private String compressCodec = "deflate";
+    private volatile FieldCompressor compressor = null;
+    private String fallbackUris = null;
+    private String clusterName = null;
+    private long failoverLatency = 0;
+    private long failoverRecheckInterval = 10000;
+    // connection events are written to, or the first one while it is being set up
+    private volatile Connection current = null;
+    // connection set up by initialize() rather than by a sink
+    private Connection standalone = null;
+
+    protected volatile boolean initialized = false;
 
     /**
-     * @see org.apache.log4j.AppenderSkeleton#activateOptions()
+     * Called on activation and reconnect. Connection to MongoDB is set up by the buffer's
+     * background thread, events logged meanwhile are buffered or, on reactivation, written with the
+     * previous connection.
      */
     @Override
-    public void activateOptions() {
-        try {
-            // Close previous connections if reactivating
-            if (mongo != null) {
-                close();
+    protected EventSink createSink() {
+        final Connection connection = new Connection(
+                rollupCollectionName != null && rollupCollectionName.trim().length() > 0
+                        ? new RollupCounters(null, rollupInterval, rollupMaxKeys, errorHandler)
+                        : null);
+        if (current == null) {
+            // count events logged before the first connection too
+            current = connection;
+        }
+        final MongoSink primary = new OffloadingSink(connection);
+        if (fallbackUris == null || fallbackUris.trim().length() == 0) {
+            return compressing(primary);
+        }
+
+        final List<String> names = new ArrayList<String>();
+        final List<MongoSink> sinks = new ArrayList<MongoSink>();
+        names.add(getClusterName());
+        sinks.add(primary);
+        for (final String uri : fallbackUris.trim().split("\\s+")) {
+            final FallbackConnection fallback = new FallbackConnection(new MongoClientURI(uri));
+            names.add(fallback.getName());
+            sinks.add(new OffloadingSink(fallback));
+        }
+        return compressing(new FailoverSink(names, sinks, failoverLatency, failoverRecheckInterval));
+    }
+
+    /**
+     * Wraps a sink so that batches are compressed by the thread writing them, with a codec of its
+     * own that is released when the sink is closed.
+     *
+     * @param sink
+     *            The sink to write to <i>(must not be null)</i>.
+     * @return The compressing sink, or the given one unless compressThreshold is set.
+     */
+    protected EventSink compressing(final EventSink sink) {
+        final FieldCompressor fieldCompressor = createCompressor();
+        return fieldCompressor != null ? new CompressingSink(sink, fieldCompressor) : sink;
+    }
+
+    /**
+     * Creates a compressor with a codec of its own, fields to be offloaded are left as they are.
+     *
+     * @return The compressor, or null unless compressThreshold is set and the codec is available.
+     */
+    private FieldCompressor createCompressor() {
+        if (compressThreshold > 0) {
+            try {
+                return new FieldCompressor(FieldCompressor.codec(compressCodec),
+                        (int) Math.min(compressThreshold, Integer.MAX_VALUE),
+                        (int) Math.min(offloadThreshold, Integer.MAX_VALUE));
+            } catch (final IllegalArgumentException | LinkageError e) {
+                errorHandler.error("Events are not compressed: " + e, null, ErrorCode.GENERIC_FAILURE);
             }
+        }
+        return null;
+    }
+
+    /**
+     * Sets up the compressor of {@link #compress(Document)} as soon as it is configured, with or
+     * without a connection, and releases the previous one.
+     */
+    private synchronized void setUpCompressor() {
+        final FieldCompressor previous = compressor;
+        compressor = createCompressor();
+        if (previous != null) {
+            previous.close();
+        }
+    }
 
-            initialize();
+    /**
+     * Switches to the connection of an opened sink.
+     */
+    @Override
+    protected void opened(final EventSink sink) {
+        final EventSink writer = sink instanceof CompressingSink ? ((CompressingSink) sink).getSink() : sink;
+        final EventSink primary = writer instanceof FailoverSink ? ((FailoverSink) writer).getSinks().get(0) : writer;
+        use((Connection) ((MongoSink) primary).getConnector());
+    }
 
-        } catch (final Exception e) {
-            errorHandler.error("Unexpected exception while initialising MongoDbAppender.", e,
-                    ErrorCode.GENERIC_FAILURE);
+    private void use(final Connection connection) {
+        current = connection;
+        mongo = connection.mongo;
+        // not connected yet when a fallback cluster was opened instead
+        if (connection.collection != null) {
+            setCollection(connection.collection);
         }
+        initialized = true;
     }
 
     /**
@@ -91,16 +213,17 @@ public class SimpleMongoDbAppender extends AbstractBsonAppender {
      */
     @Override
     public void append(final Document bson) {
-        if (initialized && bson != null) {
-            try {
-            	if(tag!=null){
-            		bson.put("tag", tag);
-            	}
-                getCollection().insertOne(bson);
-            } catch (final MongoException e) {
-                errorHandler.error("Failed to insert document to MongoDB", e,
-                        ErrorCode.WRITE_FAILURE);
+        if (bson != null) {
+            if(tag!=null){
+                bson.put("tag", tag);
+            }
+            final Connection connection = current;
+            if (connection != null && connection.rollups != null) {
+                final Date timestamp = bson.getDate("timestamp");
+                connection.rollups.count(timestamp != null ? timestamp.getTime() : System.currentTimeMillis(),
+                        bson.getString("level"), bson.getString("logger"), tag);
             }
+            super.append(bson);
         }
     }
 
@@ -109,9 +232,20 @@ public class SimpleMongoDbAppender extends AbstractBsonAppender {
 	 */
 	@Override
 	public void close() {
-		if (mongo != null) {
-			collection = null;
-			mongo.close();
+		// queued events and counters are written before the clients go away
+		super.close();
+		if (standalone != null) {
+			standalone.disconnect();
+			standalone = null;
+		}
+		current = null;
+		collection = null;
+		mongo = null;
+		initialized = false;
+		synchronized (this) {
+			if (compressor != null) {
+				compressor.close();
+			}
 		}
 	}
 
@@ -151,6 +285,44 @@ public class SimpleMongoDbAppender extends AbstractBsonAppender {
         return port;
     }
 
+    public String getRollupCollectionName() {
+        return rollupCollectionName;
+    }
+
+    /**
+     * @param rollupCollectionName
+     *            The collection to keep per minute event counts by level, logger and tag in <i>(may
+     *            be null to not count events)</i>.
+     */
+    public void setRollupCollectionName(final String rollupCollectionName) {
+        this.rollupCollectionName = rollupCollectionName;
+    }
+
+    public long getRollupInterval() {
+        return rollupInterval;
+    }
+
+    /**
+     * @param rollupInterval
+     *            milliseconds between writes of the counters.
+     */
+    public void setRollupInterval(final long rollupInterval) {
+        this.rollupInterval = rollupInterval;
+    }
+
+    public int getRollupMaxKeys() {
+        return rollupMaxKeys;
+    }
+
+    /**
+     * @param rollupMaxKeys
+     *            maximum number of counters kept in memory, events of further loggers are counted
+     *            together.
+     */
+    public void setRollupMaxKeys(final int rollupMaxKeys) {
+        this.rollupMaxKeys = rollupMaxKeys;
+    }
+
     public String getSourceDb() {
 		return sourceDb;
 	}
@@ -174,8 +346,8 @@ public class SimpleMongoDbAppender extends AbstractBsonAppender {
 	}
 
     /**
-     * Returns true if appender was successfully initialized. If this method returns false, the
-     * appender should not attempt to log events.
+     * Returns true if appender has connected to MongoDB. Connection is set up in background after
+     * activation, events appended before that are buffered.
      *
      * @return true if appender was successfully initialized
      */
@@ -183,14 +355,6 @@ public class SimpleMongoDbAppender extends AbstractBsonAppender {
         return initialized;
     }
 
-    /**
-     * @see org.apache.log4j.Appender#requiresLayout()
-     */
-    @Override
-	public boolean requiresLayout() {
-        return (false);
-    }
-
     /**
      * Note: this method is primarily intended for use by the unit tests.
      *
@@ -279,9 +443,189 @@ public class SimpleMongoDbAppender extends AbstractBsonAppender {
      */
     public void setWriteConcern(final String writeConcern) {
     	this.writeConcern = writeConcern;
-		concern = WriteConcern.valueOf(writeConcern);
+		concern = writeConcern != null ? WriteConcern.valueOf(writeConcern) : null;
 	}
 
+    public long getCappedSizeBytes() {
+        return cappedSize;
+    }
+
+    /**
+     * @param value
+     *            Size of the capped collection to create, with optional KB, MB or GB suffix <i>(0
+     *            for a regular collection; applies only when the collection is created)</i>.
+     */
+    public void setCappedSize(final String value) {
+        cappedSize = OptionConverter.toFileSize(value, 0);
+    }
+
+    public long getExpireAfterSeconds() {
+        return expireAfterSeconds;
+    }
+
+    /**
+     * @param expireAfterSeconds
+     *            Age of events for MongoDB to remove by a TTL index on timestamp <i>(0 to keep
+     *            events)</i>.
+     */
+    public void setExpireAfterSeconds(final long expireAfterSeconds) {
+        this.expireAfterSeconds = expireAfterSeconds;
+    }
+
+    public String getBlockCompressor() {
+        return blockCompressor;
+    }
+
+    /**
+     * @param blockCompressor
+     *            WiredTiger block compressor of the collection: snappy, zlib or none <i>(may be
+     *            null for server default; applies only when the collection is created)</i>.
+     */
+    public void setBlockCompressor(final String blockCompressor) {
+        this.blockCompressor = blockCompressor;
+    }
+
+    public long getOffloadThresholdBytes() {
+        return offloadThreshold;
+    }
+
+    /**
+     * @param value
+     *            Size of message or stack trace, with optional KB or MB suffix, to move it to GridFS
+     *            from <i>(0 to keep events as they are)</i>.
+     */
+    public void setOffloadThreshold(final String value) {
+        offloadThreshold = OptionConverter.toFileSize(value, 0);
+        setUpCompressor();
+    }
+
+    public int getOffloadPreviewSize() {
+        return offloadPreviewSize;
+    }
+
+    /**
+     * @param offloadPreviewSize
+     *            Number of characters of an offloaded field to keep in the event.
+     */
+    public void setOffloadPreviewSize(final int offloadPreviewSize) {
+        this.offloadPreviewSize = offloadPreviewSize;
+    }
+
+    public String getOffloadBucket() {
+        return offloadBucket;
+    }
+
+    /**
+     * @param offloadBucket
+     *            GridFS bucket to store offloaded fields in.
+     */
+    public void setOffloadBucket(final String offloadBucket) {
+        this.offloadBucket = offloadBucket;
+    }
+
+    public boolean isOffloadCompress() {
+        return offloadCompress;
+    }
+
+    /**
+     * @param offloadCompress
+     *            Whether to gzip offloaded fields.
+     */
+    public void setOffloadCompress(final boolean offloadCompress) {
+        this.offloadCompress = offloadCompress;
+    }
+
+    public String getFallbackUris() {
+        return fallbackUris;
+    }
+
+    /**
+     * @param fallbackUris
+     *            Blank space delimited MongoDB connection strings of clusters to write to when the
+     *            primary one fails, in order of preference, e.g.
+     *            mongodb://host1,host2:27017/log4mongo.logevents <i>(may be null; database and
+     *            collection default to databaseName and collectionName)</i>.
+     */
+    public void setFallbackUris(final String fallbackUris) {
+        this.fallbackUris = fallbackUris;
+    }
+
+    /**
+     * @return The name events written to a fallback cluster are tagged with, the hostname property
+     *         unless set.
+     */
+    public String getClusterName() {
+        return clusterName != null ? clusterName : hostname.trim().replace(' ', ',');
+    }
+
+    public void setClusterName(final String clusterName) {
+        this.clusterName = clusterName;
+    }
+
+    public long getFailoverLatency() {
+        return failoverLatency;
+    }
+
+    /**
+     * @param failoverLatency
+     *            Milliseconds to wait for the primary cluster before writing a batch to a fallback
+     *            one <i>(0 to fail over only on errors)</i>.
+     */
+    public void setFailoverLatency(final long failoverLatency) {
+        this.failoverLatency = failoverLatency;
+    }
+
+    public long getFailoverRecheckInterval() {
+        return failoverRecheckInterval;
+    }
+
+    /**
+     * @param failoverRecheckInterval
+     *            Milliseconds before a failed cluster is tried again.
+     */
+    public void setFailoverRecheckInterval(final long failoverRecheckInterval) {
+        this.failoverRecheckInterval = failoverRecheckInterval;
+    }
+
+    public long getCompressThresholdBytes() {
+        return compressThreshold;
+    }
+
+    /**
+     * @param value
+     *            Size of message or stack trace, with optional KB or MB suffix, to compress it from
+     *            <i>(0 to store events uncompressed)</i>.
+     */
+    public void setCompressThreshold(final String value) {
+        compressThreshold = OptionConverter.toFileSize(value, 0);
+        setUpCompressor();
+    }
+
+    public String getCompressCodec() {
+        return compressCodec;
+    }
+
+    /**
+     * @param compressCodec
+     *            deflate, or lz4 if net.jpountz.lz4 is on the classpath.
+     */
+    public void setCompressCodec(final String compressCodec) {
+        this.compressCodec = compressCodec;
+        setUpCompressor();
+    }
+
+    public boolean isCreateIndexes() {
+        return createIndexes;
+    }
+
+    /**
+     * @param createIndexes
+     *            Whether to build indexes on activation.
+     */
+    public void setCreateIndexes(final boolean createIndexes) {
+        this.createIndexes = createIndexes;
+    }
+
     private List<Integer> getPortNums(final String[] ports) {
         final List<Integer> portNums = new ArrayList<Integer>();
 
@@ -353,6 +697,38 @@ public class SimpleMongoDbAppender extends AbstractBsonAppender {
         return addresses;
     }
 
+    /**
+     * Moves message and stack trace longer than offloadThreshold to GridFS, leaving a preview and a
+     * reference in the event. Does nothing unless offloadThreshold is set and the appender is
+     * connected. Safe to call from several threads. For callers that insert converted events
+     * themselves, appended events are offloaded by the sink that writes them.
+     *
+     * @param bson
+     *            The event to check <i>(must not be null)</i>.
+     * @return The same event.
+     */
+    protected Document offload(final Document bson) {
+        final Connection connection = current;
+        if (connection != null && connection.offloader != null) {
+            connection.offloader.offload(bson);
+        }
+        return bson;
+    }
+
+    /**
+     * Compresses message and stack trace of at least compressThreshold bytes. Does nothing unless
+     * compressThreshold is set. Safe to call from several threads. For callers that insert converted
+     * events themselves, appended events are compressed by the sink that writes them.
+     *
+     * @param bson
+     *            The event to compress <i>(must not be null)</i>.
+     * @return The same event.
+     */
+    protected Document compress(final Document bson) {
+        final FieldCompressor fieldCompressor = compressor;
+        return fieldCompressor != null ? fieldCompressor.compress(bson) : bson;
+    }
+
 	/**
      *
      * @return The MongoDB collection to which events are logged.
@@ -386,20 +762,182 @@ public class SimpleMongoDbAppender extends AbstractBsonAppender {
         return new MongoClient(addresses);
     }
 
+    /**
+     * Connects to MongoDB on the calling thread, for use without activation.
+     */
 	protected void initialize(){
-        final List<ServerAddress> addresses = getServerAddresses(hostname, port);
-        mongo = getMongo(addresses);
-        mongo.setWriteConcern(WriteConcern.valueOf(getWriteConcern()));
+        final Connection connection = new Connection(null);
+        connection.connect();
+        standalone = connection;
+        use(connection);
+    }
+
+    /**
+     * @return offloader to the GridFS of the database, null unless offloadThreshold is set.
+     */
+    private GridFsOffloader createOffloader(final MongoClient client, final String database) {
+        if (offloadThreshold <= 0) {
+            return null;
+        }
+        return new GridFsOffloader(client.getDB(database), offloadBucket,
+                (int) Math.min(offloadThreshold, Integer.MAX_VALUE), offloadPreviewSize, offloadCompress);
+    }
+
+    /**
+     * Connector of a cluster that keeps the offloaded fields of events written to it.
+     */
+    private interface OffloadingConnector extends MongoSink.Connector {
+        /**
+         * @return The offloader of the connected cluster <i>(null if not offloading or not
+         *         connected)</i>.
+         */
+        GridFsOffloader getOffloader();
+    }
 
-        final MongoDatabase database = getDatabase(mongo, databaseName);
+    /**
+     * Sink that offloads oversized fields of a batch right before inserting it, on the thread
+     * writing the batch and to the cluster the batch goes to.
+     */
+    private static class OffloadingSink extends MongoSink {
+        private final OffloadingConnector connector;
 
-        if (userName != null && userName.trim().length() > 0) {
-            // Allow password to be GCed
-            password = null;
+        OffloadingSink(final OffloadingConnector connector) {
+            super(connector);
+            this.connector = connector;
         }
 
-        setCollection(database.getCollection(collectionName));
-        initialized = true;
+        @Override
+        public void write(final List<RawBsonDocument> batch) throws IOException {
+            final GridFsOffloader offloader = connector.getOffloader();
+            super.write(offloader != null ? offloader.offload(batch) : batch);
+        }
     }
 
+    /**
+     * Client, collection and helpers of one activation or reconnect. It is set up on a background
+     * thread and replaces the previous connection only when it is ready, the previous one is
+     * disconnected after its queued events are written.
+     */
+    private class Connection implements OffloadingConnector {
+        private final RollupCounters rollups;
+        private volatile MongoClient mongo = null;
+        private volatile MongoCollection<Document> collection = null;
+        private volatile GridFsOffloader offloader = null;
+
+        Connection(final RollupCounters rollups) {
+            this.rollups = rollups;
+        }
+
+        @Override
+        public MongoCollection<Document> connect() {
+            // a previous attempt may have failed half way
+            if (mongo != null) {
+                mongo.close();
+            }
+            final List<ServerAddress> addresses = getServerAddresses(hostname, port);
+            mongo = getMongo(addresses);
+            if (getWriteConcern() != null) {
+                mongo.setWriteConcern(WriteConcern.valueOf(getWriteConcern()));
+            }
+
+            final MongoDatabase database = getDatabase(mongo, databaseName);
+
+            final CollectionProvisioner provisioner = new CollectionProvisioner(database)
+                    .cappedSize(cappedSize).expireAfterSeconds(expireAfterSeconds)
+                    .blockCompressor(blockCompressor);
+            provisioner.createCollection(collectionName);
+            collection = database.getCollection(collectionName);
+            if (createIndexes) {
+                provisioner.createIndexes(collection, getBucketSize() > 0
+                        ? CollectionProvisioner.bucketIndexes(getBucketBy())
+                        : CollectionProvisioner.eventIndexes());
+            }
+            offloader = createOffloader(mongo, databaseName);
+            if (rollups != null) {
+                final MongoCollection<Document> rollupCollection = database.getCollection(rollupCollectionName);
+                if (createIndexes) {
+                    provisioner.createIndexes(rollupCollection, Arrays.asList(new Document("minute", -1)));
+                }
+                rollups.setCollection(rollupCollection);
+            }
+            return collection;
+        }
+
+        @Override
+        public GridFsOffloader getOffloader() {
+            return offloader;
+        }
+
+        @Override
+        public void disconnect() {
+            if (rollups != null) {
+                rollups.close();
+            }
+            if (mongo != null) {
+                mongo.close();
+            }
+        }
+    }
+
+    /**
+     * Client and collection of a fallback cluster. Events and their offloaded fields are written
+     * there, rollups stay with the primary cluster.
+     */
+    private class FallbackConnection implements OffloadingConnector {
+        private final MongoClientURI uri;
+        private volatile MongoClient mongo = null;
+        private volatile GridFsOffloader offloader = null;
+
+        FallbackConnection(final MongoClientURI uri) {
+            this.uri = uri;
+        }
+
+        String getName() {
+            final StringBuilder name = new StringBuilder();
+            for (final String host : uri.getHosts()) {
+                name.append(name.length() > 0 ? "," : "").append(host);
+            }
+            return name.toString();
+        }
+
+        @Override
+        public MongoCollection<Document> connect() {
+            if (mongo != null) {
+                mongo.close();
+            }
+            mongo = new MongoClient(uri);
+            if (getWriteConcern() != null) {
+                mongo.setWriteConcern(WriteConcern.valueOf(getWriteConcern()));
+            }
+
+            final String databaseName = uri.getDatabase() != null ? uri.getDatabase()
+                    : SimpleMongoDbAppender.this.databaseName;
+            final MongoDatabase database = mongo.getDatabase(databaseName);
+            final String name = uri.getCollection() != null ? uri.getCollection() : collectionName;
+            final CollectionProvisioner provisioner = new CollectionProvisioner(database)
+                    .cappedSize(cappedSize).expireAfterSeconds(expireAfterSeconds)
+                    .blockCompressor(blockCompressor);
+            provisioner.createCollection(name);
+            final MongoCollection<Document> result = database.getCollection(name);
+            if (createIndexes) {
+                provisioner.createIndexes(result, getBucketSize() > 0
+                        ? CollectionProvisioner.bucketIndexes(getBucketBy())
+                        : CollectionProvisioner.eventIndexes());
+            }
+            offloader = createOffloader(mongo, databaseName);
+            return result;
+        }
+
+        @Override
+        public GridFsOffloader getOffloader() {
+            return offloader;
+        }
+
+        @Override
+        public void disconnect() {
+            if (mongo != null) {
+                mongo.close();
+            }
+        }
+    }
 }
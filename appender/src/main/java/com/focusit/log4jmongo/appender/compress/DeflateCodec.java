@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender.compress;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib deflate from the JDK. A Deflater and an Inflater are created when first needed and reset
+ * between fields, as creating them allocates native memory, and are ended on {@link #close()}.
+ * Calls are serialized, a codec belongs to one writer.
+ */
+public class DeflateCodec implements FieldCodec {
+    public static final byte ID = 1;
+
+    private static final int CHUNK = 8192;
+
+    private final int level;
+    // guarded by this
+    private Deflater deflater = null;
+    private Inflater inflater = null;
+    // output of a compression before it is trimmed to size
+    private byte[] buffer = new byte[CHUNK];
+
+    /**
+     * Fastest compression, stack traces compress well even so.
+     */
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level
+     *            compression level from 1 (fastest) to 9 (smallest).
+     */
+    public DeflateCodec(final int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public synchronized byte[] compress(final byte[] data) {
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public synchronized byte[] decompress(final byte[] data, final int offset, final int count, final int length)
+            throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(data, offset, count);
+        final byte[] result = new byte[length];
+        try {
+            int inflated = 0;
+            while (inflated < length) {
+                final int n = inflater.inflate(result, inflated, length - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != length) {
+                throw new IOException("Expected " + length + " bytes, inflated " + inflated);
+            }
+        } catch (final DataFormatException e) {
+            throw new IOException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        buffer = new byte[CHUNK];
+    }
+}
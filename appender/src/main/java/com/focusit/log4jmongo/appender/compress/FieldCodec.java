@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender.compress;
+
+import java.io.IOException;
+
+/**
+ * Compression algorithm of event fields. Implementations are thread safe, an instance belongs to
+ * one writer and is closed with it, so native state is not kept per thread.
+ */
+public interface FieldCodec {
+
+    /**
+     * @return marker stored with compressed data to find the codec to decompress it with, unique
+     *         among codecs.
+     */
+    byte getId();
+
+    /**
+     * @param data
+     *            bytes to compress <i>(must not be null)</i>.
+     * @return compressed bytes.
+     */
+    byte[] compress(byte[] data);
+
+    /**
+     * @param data
+     *            array holding compressed bytes <i>(must not be null)</i>.
+     * @param offset
+     *            index of the first compressed byte in data.
+     * @param count
+     *            number of compressed bytes.
+     * @param length
+     *            number of uncompressed bytes.
+     * @return uncompressed bytes.
+     * @throws IOException
+     *             if the data is corrupt.
+     */
+    byte[] decompress(byte[] data, int offset, int count, int length) throws IOException;
+
+    /**
+     * Releases native resources, the codec is not used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,294 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender.compress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
+
+import com.mongodb.MongoClient;
+
+/**
+ * Compresses the large text fields of an event on the client: message, stacktraces and the
+ * structured throwables. Old drivers compress nothing on the wire, while stack traces are often
+ * most of the bytes sent to the server and replicated from it.
+ * <p>
+ * A field whose encoded size is at least the threshold is replaced with a binary of the user
+ * defined subtype 0x80, which holds a header and the compressed bytes:
+ *
+ * <pre>
+ * byte  codec id, see {@link FieldCodec#getId()}
+ * byte  0 for a UTF-8 string, 1 for a BSON document {v: value}
+ * int32 uncompressed length, little endian like the rest of BSON
+ * ...   compressed bytes
+ * </pre>
+ *
+ * Fields that don't get smaller are kept as they are. Compressed fields can't be searched by the
+ * server, {@link #decode(Document)} restores them on reading.
+ */
+public class FieldCompressor {
+    public static final byte SUBTYPE = BsonBinarySubType.USER_DEFINED.getValue();
+
+    private static final String KEY_MESSAGE = "message";
+    private static final String KEY_STACKTRACES = "stacktraces";
+    private static final String KEY_THROWABLES = "throwables";
+    private static final String KEY_VALUE = "v";
+    private static final String KEY_EVENTS = "events";
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_DOCUMENT = 1;
+    private static final int HEADER = 6;
+
+    // DBObject values produced by the appender need default registry of the driver
+    private static final DocumentCodec CODEC = new DocumentCodec(MongoClient.getDefaultCodecRegistry(),
+            new BsonTypeClassMap());
+    // codecs to decode with, shared by all threads for the life of the class
+    private static final FieldCodec[] CODECS = new FieldCodec[3];
+
+    private final FieldCodec codec;
+    private final int threshold;
+    private final int limit;
+
+    /**
+     * @param codec
+     *            compression to use <i>(must not be null)</i>.
+     * @param threshold
+     *            size of a field in bytes to compress it from.
+     */
+    public FieldCompressor(final FieldCodec codec, final int threshold) {
+        this(codec, threshold, 0);
+    }
+
+    /**
+     * @param codec
+     *            compression to use <i>(must not be null)</i>.
+     * @param threshold
+     *            size of a field in bytes to compress it from.
+     * @param limit
+     *            size of a field in bytes to leave it as it is from, so it can be offloaded later
+     *            <i>(0 for no limit)</i>.
+     */
+    public FieldCompressor(final FieldCodec codec, final int threshold, final int limit) {
+        assert codec != null : "codec must not be null";
+
+        this.codec = codec;
+        this.threshold = Math.max(1, threshold);
+        this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param name
+     *            deflate or lz4.
+     * @return new codec of the name, to be closed by the caller.
+     * @throws IllegalArgumentException
+     *             if the name is unknown.
+     */
+    public static FieldCodec codec(final String name) {
+        switch (name.trim().toLowerCase(Locale.ENGLISH)) {
+        case "deflate":
+            return new DeflateCodec();
+        case "lz4":
+            return new Lz4Codec();
+        default:
+            throw new IllegalArgumentException("Unknown compression codec " + name);
+        }
+    }
+
+    /**
+     * Codecs are created when first needed, so LZ4 classes are not loaded unless LZ4 is used.
+     */
+    private static synchronized FieldCodec sharedCodec(final byte id) {
+        if (id <= 0 || id >= CODECS.length) {
+            throw new IllegalArgumentException("Unknown compression codec id " + id);
+        }
+        if (CODECS[id] == null) {
+            CODECS[id] = id == DeflateCodec.ID ? new DeflateCodec() : new Lz4Codec();
+        }
+        return CODECS[id];
+    }
+
+    /**
+     * Compresses large fields of the events of a batch, including events of buckets. Only documents
+     * of at least threshold bytes are decoded and encoded again. Safe to call from several threads.
+     *
+     * @param batch
+     *            encoded events to write <i>(must not be null)</i>.
+     * @return the batch, or a copy of it with the compressed events replaced.
+     */
+    public List<RawBsonDocument> compress(final List<RawBsonDocument> batch) {
+        List<RawBsonDocument> result = batch;
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i).getByteBuffer().remaining() < threshold) {
+                continue;
+            }
+            final Document event = batch.get(i).decode(CODEC);
+            boolean changed = compressFields(event);
+            final Object events = event.get(KEY_EVENTS);
+            if (events instanceof List) {
+                for (final Object bucketed : (List<?>) events) {
+                    if (bucketed instanceof Document) {
+                        changed |= compressFields((Document) bucketed);
+                    }
+                }
+            }
+            if (changed) {
+                if (result == batch) {
+                    result = new ArrayList<RawBsonDocument>(batch);
+                }
+                result.set(i, new RawBsonDocument(event, CODEC));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compresses large fields of an event in place. Safe to call from several threads.
+     *
+     * @param event
+     *            event to compress <i>(must not be null)</i>.
+     * @return the same event.
+     */
+    public Document compress(final Document event) {
+        compressFields(event);
+        return event;
+    }
+
+    /**
+     * Releases the codec.
+     */
+    public void close() {
+        codec.close();
+    }
+
+    /**
+     * @return true if a field was compressed.
+     */
+    private boolean compressFields(final Document event) {
+        boolean changed = compressString(event, KEY_MESSAGE);
+        final boolean large = compressString(event, KEY_STACKTRACES);
+        changed |= large;
+        // throwables are as large as the stack traces, don't encode them for small ones
+        final Object throwables = event.get(KEY_THROWABLES);
+        if (large && throwables != null) {
+            final BasicOutputBuffer buffer = new BasicOutputBuffer();
+            CODEC.encode(new BsonBinaryWriter(buffer), new Document(KEY_VALUE, throwables),
+                    EncoderContext.builder().build());
+            final Binary compressed = pack(TYPE_DOCUMENT, buffer.toByteArray());
+            if (compressed != null) {
+                event.put(KEY_THROWABLES, compressed);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return true if the field is at least threshold bytes long and within the limit.
+     */
+    private boolean compressString(final Document event, final String key) {
+        final Object value = event.get(key);
+        // a char takes at least one and at most three bytes
+        if (!(value instanceof String) || ((String) value).length() < threshold / 3
+                || ((String) value).length() > limit) {
+            return false;
+        }
+        final byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < threshold || bytes.length > limit) {
+            return false;
+        }
+        final Binary compressed = pack(TYPE_STRING, bytes);
+        if (compressed != null) {
+            event.put(key, compressed);
+        }
+        return true;
+    }
+
+    /**
+     * @return binary with header and compressed bytes, null if it is not smaller.
+     */
+    private Binary pack(final byte type, final byte[] bytes) {
+        final byte[] compressed = codec.compress(bytes);
+        if (compressed.length + HEADER >= bytes.length) {
+            return null;
+        }
+        final ByteBuffer result = ByteBuffer.allocate(HEADER + compressed.length).order(ByteOrder.LITTLE_ENDIAN);
+        result.put(codec.getId()).put(type).putInt(bytes.length).put(compressed);
+        return new Binary(SUBTYPE, result.array());
+    }
+
+    /**
+     * Restores compressed fields of an event, or of the events of a bucket, in place, events without
+     * them are left as they are.
+     *
+     * @param event
+     *            stored event <i>(must not be null)</i>.
+     * @return the same event.
+     * @throws IllegalArgumentException
+     *             if a field is compressed with an unknown codec or is corrupt.
+     */
+    public static Document decode(final Document event) {
+        for (final Map.Entry<String, Object> field : event.entrySet()) {
+            if (field.getValue() instanceof Binary && ((Binary) field.getValue()).getType() == SUBTYPE) {
+                field.setValue(unpack(((Binary) field.getValue()).getData()));
+            } else if (KEY_EVENTS.equals(field.getKey()) && field.getValue() instanceof List) {
+                // events of a bucket
+                for (final Object bucketed : (List<?>) field.getValue()) {
+                    if (bucketed instanceof Document) {
+                        decode((Document) bucketed);
+                    }
+                }
+            }
+        }
+        return event;
+    }
+
+    /**
+     * @return value of a compressed field: a String, or a List for throwables.
+     */
+    private static Object unpack(final byte[] data) {
+        final ByteBuffer header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        final byte id = header.get();
+        final byte type = header.get();
+        final int length = header.getInt();
+        final byte[] bytes;
+        try {
+            bytes = sharedCodec(id).decompress(data, HEADER, data.length - HEADER, length);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Corrupt compressed field", e);
+        }
+        if (type == TYPE_STRING) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        final Document wrapper = CODEC.decode(new BsonBinaryReader(ByteBuffer.wrap(bytes)),
+                DecoderContext.builder().build());
+        return wrapper.get(KEY_VALUE);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender.sink;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.bson.RawBsonDocument;
+
+import com.focusit.log4jmongo.appender.compress.FieldCompressor;
+
+/**
+ * Compresses large fields of a batch before passing it on, on the thread writing the batch rather
+ * than on logging threads (see {@link FieldCompressor}). The sink owns the compressor and closes it
+ * with the sink it wraps.
+ */
+public class CompressingSink implements EventSink {
+    private final EventSink sink;
+    private final FieldCompressor compressor;
+
+    /**
+     * @param sink
+     *            sink to write compressed batches to <i>(must not be null)</i>.
+     * @param compressor
+     *            compressor of this sink only <i>(must not be null)</i>.
+     */
+    public CompressingSink(final EventSink sink, final FieldCompressor compressor) {
+        assert sink != null : "sink must not be null";
+        assert compressor != null : "compressor must not be null";
+
+        this.sink = sink;
+        this.compressor = compressor;
+    }
+
+    @Override
+    public void open() throws IOException {
+        sink.open();
+    }
+
+    @Override
+    public void write(final List<RawBsonDocument> batch) throws IOException {
+        sink.write(compressor.compress(batch));
+    }
+
+    @Override
+    public void close() {
+        try {
+            sink.close();
+        } finally {
+            compressor.close();
+        }
+    }
+
+    /**
+     * @return the sink batches are written to.
+     */
+    public EventSink getSink() {
+        return sink;
+    }
+}
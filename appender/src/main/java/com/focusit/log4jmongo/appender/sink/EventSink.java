@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender.sink;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.bson.RawBsonDocument;
+
+/**
+ * Destination of log events. A sink receives batches of events that are already encoded to BSON,
+ * buffering, batching and retrying are done in front of it by
+ * {@link com.focusit.log4jmongo.appender.EventBuffer}, so a sink only has to store a batch.
+ * <p>
+ * Batches are written by the flusher thread of the buffer, or, when events are written on the
+ * calling thread, by all logging threads at once, so {@link #write(List)} must be thread safe.
+ * Opening and closing are not concurrent with each other.
+ */
+public interface EventSink {
+
+    /**
+     * Prepares sink for writing: opens connections, files and so on.
+     *
+     * @throws IOException
+     *             if sink can't be opened
+     */
+    void open() throws IOException;
+
+    /**
+     * Stores a batch of events. If this method throws, the same batch may be passed again.
+     *
+     * @param batch
+     *            events encoded to BSON <i>(must not be null or empty)</i>.
+     * @throws IOException
+     *             if batch is not stored
+     */
+    void write(List<RawBsonDocument> batch) throws IOException;
+
+    /**
+     * Releases resources of the sink. Sink is not used after it is closed.
+     */
+    void close();
+}
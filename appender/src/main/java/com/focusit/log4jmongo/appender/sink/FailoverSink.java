@@ -0,0 +1,290 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.helpers.LogLog;
+import org.bson.RawBsonDocument;
+
+/**
+ * Writes to the first healthy of several sinks, e.g. independent MongoDB clusters. The first sink
+ * is the primary one, the rest are fallbacks in order of preference.
+ * <p>
+ * A batch goes to the primary sink. If it fails, or does not complete within the latency budget,
+ * the sink is marked unhealthy and the batch goes to the next sink. A write that ran out of the
+ * budget is not cancelled, so the batch is hedged: it may end up in both sinks, with the same _id.
+ * Documents written anywhere but the primary sink get an {@value #ORIGIN} field with the name of
+ * the primary sink, so they can be found and copied back later.
+ * <p>
+ * An unhealthy sink is skipped until recheckInterval passes, then the next batch tries it again, so
+ * writes switch back to the primary sink as soon as it is healthy. A sink is also skipped while a
+ * write that ran out of the budget still runs, otherwise sinks take concurrent writes of logging
+ * threads as they are.
+ */
+public class FailoverSink implements EventSink {
+    public static final String ORIGIN = "origin";
+
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int ABANDONED = 2;
+
+    private final List<Member> members = new ArrayList<Member>();
+    private final long latencyBudget;
+    private final long recheckInterval;
+    private final ExecutorService executor;
+
+    /**
+     * @param names
+     *            names of the sinks, the name of the primary one is written to {@value #ORIGIN}
+     * @param sinks
+     *            primary sink followed by fallback sinks
+     * @param latencyBudget
+     *            milliseconds to wait for the primary sink before writing to a fallback, 0 to wait
+     *            till it completes or fails
+     * @param recheckInterval
+     *            milliseconds to skip an unhealthy sink for
+     */
+    public FailoverSink(final List<String> names, final List<? extends EventSink> sinks,
+            final long latencyBudget, final long recheckInterval) {
+        assert names.size() == sinks.size() : "a name per sink is required";
+
+        for (int i = 0; i < sinks.size(); i++) {
+            members.add(new Member(names.get(i), sinks.get(i)));
+        }
+        this.latencyBudget = latencyBudget;
+        this.recheckInterval = recheckInterval;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, "log4mongo-hedge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Opens all sinks. It is enough for one of them to open, the rest are opened when they are
+     * needed.
+     */
+    @Override
+    public void open() throws IOException {
+        Exception failure = null;
+        boolean opened = false;
+        for (final Member member : members) {
+            try {
+                member.open();
+                opened = true;
+            } catch (final Exception e) {
+                LogLog.warn("Failed to open " + member.name + ": " + e.getMessage());
+                member.failed();
+                failure = e;
+            }
+        }
+        if (!opened) {
+            throw new IOException("None of " + members.size() + " sinks could be opened", failure);
+        }
+    }
+
+    @Override
+    public void write(final List<RawBsonDocument> batch) throws IOException {
+        final long now = System.currentTimeMillis();
+        List<Member> candidates = new ArrayList<Member>(members.size());
+        for (final Member member : members) {
+            if (member.isAvailable(now)) {
+                candidates.add(member);
+            }
+        }
+        if (candidates.isEmpty()) {
+            // everything is unhealthy, try all of them rather than fail right away
+            candidates = members;
+        }
+
+        Exception failure = null;
+        List<RawBsonDocument> tagged = null;
+        for (final Member member : candidates) {
+            final boolean primary = member == members.get(0);
+            if (!primary && tagged == null) {
+                tagged = tag(batch, members.get(0).name);
+            }
+            try {
+                if (primary && latencyBudget > 0 && members.size() > 1) {
+                    member.writeWithin(batch, latencyBudget);
+                } else {
+                    member.write(primary ? batch : tagged);
+                }
+                member.succeeded();
+                return;
+            } catch (final Exception e) {
+                LogLog.warn("Failed to write " + batch.size() + " event(s) to " + member.name + ": "
+                        + e.getMessage());
+                member.failed();
+                failure = e;
+            }
+        }
+        throw new IOException("Failed to write " + batch.size() + " event(s) to any of "
+                + members.size() + " sinks", failure);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        for (final Member member : members) {
+            member.sink.close();
+        }
+    }
+
+    /**
+     * @return sinks in order of preference, primary first.
+     */
+    public List<EventSink> getSinks() {
+        final List<EventSink> sinks = new ArrayList<EventSink>(members.size());
+        for (final Member member : members) {
+            sinks.add(member.sink);
+        }
+        return Collections.unmodifiableList(sinks);
+    }
+
+    /**
+     * @return true if the primary sink is currently considered healthy.
+     */
+    public boolean isPrimaryHealthy() {
+        return members.get(0).healthy;
+    }
+
+    private static List<RawBsonDocument> tag(final List<RawBsonDocument> batch, final String origin) {
+        final List<RawBsonDocument> tagged = new ArrayList<RawBsonDocument>(batch.size());
+        for (final RawBsonDocument document : batch) {
+            tagged.add(append(document, ORIGIN, origin));
+        }
+        return tagged;
+    }
+
+    /**
+     * Appends a string field to an encoded document without decoding it: a document is an int32
+     * length, elements and a terminating zero, so the element goes before the zero.
+     */
+    static RawBsonDocument append(final RawBsonDocument document, final String key, final String value) {
+        final ByteBuffer source = document.getByteBuffer().asNIO();
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        final int length = source.remaining();
+        final int newLength = length + 1 + keyBytes.length + 1 + 4 + valueBytes.length + 1;
+
+        final ByteBuffer target = ByteBuffer.allocate(newLength).order(ByteOrder.LITTLE_ENDIAN);
+        target.putInt(newLength);
+        source.position(source.position() + 4);
+        source.limit(source.limit() - 1);
+        target.put(source);
+        target.put((byte) 0x02).put(keyBytes).put((byte) 0);
+        target.putInt(valueBytes.length + 1).put(valueBytes).put((byte) 0);
+        target.put((byte) 0);
+        return new RawBsonDocument(target.array());
+    }
+
+    private class Member {
+        private final String name;
+        private final EventSink sink;
+        private volatile boolean opened = false;
+        private volatile boolean healthy = true;
+        private volatile long recheckAt = 0;
+        // hedged writes that ran out of the budget and still run in background
+        private final AtomicInteger abandoned = new AtomicInteger();
+
+        Member(final String name, final EventSink sink) {
+            this.name = name;
+            this.sink = sink;
+        }
+
+        boolean isAvailable(final long now) {
+            return abandoned.get() == 0 && (healthy || now >= recheckAt);
+        }
+
+        void open() throws IOException {
+            if (!opened) {
+                synchronized (this) {
+                    if (!opened) {
+                        sink.open();
+                        opened = true;
+                    }
+                }
+            }
+        }
+
+        void write(final List<RawBsonDocument> batch) throws IOException {
+            open();
+            sink.write(batch);
+        }
+
+        void writeWithin(final List<RawBsonDocument> batch, final long budget) throws Exception {
+            // RUNNING, then DONE by the write or ABANDONED by the caller, whichever is first
+            final AtomicInteger state = new AtomicInteger(RUNNING);
+            final Future<Void> result = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        write(batch);
+                    } finally {
+                        if (!state.compareAndSet(RUNNING, DONE)) {
+                            abandoned.decrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            });
+            try {
+                result.get(budget, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                abandoned.incrementAndGet();
+                if (!state.compareAndSet(RUNNING, ABANDONED)) {
+                    // completed meanwhile
+                    abandoned.decrementAndGet();
+                }
+                throw new IOException(name + " did not complete in " + budget + " ms", e);
+            } catch (final ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        void succeeded() {
+            if (!healthy) {
+                LogLog.warn(name + " is healthy again");
+            }
+            healthy = true;
+        }
+
+        void failed() {
+            healthy = false;
+            recheckAt = System.currentTimeMillis() + recheckInterval;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.helpers.LogLog;
+import org.bson.RawBsonDocument;
+
+/**
+ * Sink that appends events to local files, rolled over by size. Files are written either as
+ * .bson (length-prefixed documents, loadable with mongorestore or bsondump) or as .json with one
+ * document per line (loadable with mongoimport).
+ * <p>
+ * Writes are group committed: write() returns once the batch is on disk. The first writer to wait
+ * runs an fsync that covers every batch written before it starts, writers arriving meanwhile wait
+ * for it to finish and then one of them syncs all of their batches at once. A positive
+ * fsyncInterval keeps at least that many milliseconds between fsyncs, so more batches share one at
+ * the cost of latency. A negative fsyncInterval never syncs: batches are acknowledged as soon as the
+ * OS has them and may be lost with the host.
+ */
+public class FileSink implements EventSink {
+    private static final byte[] NEW_LINE = { '\n' };
+
+    /**
+     * Layout of the files.
+     */
+    public enum Format {
+        BSON("bson"), JSON("json");
+
+        private final String extension;
+
+        Format(final String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final Format format;
+    private final long maxFileSize;
+    private final long fsyncInterval;
+
+    // guarded by this
+    private FileChannel channel = null;
+    private long size = 0;
+    private int files = 0;
+    // batches written and batches synced to disk, by their sequence number
+    private long written = 0;
+    private long synced = 0;
+    private boolean syncing = false;
+    private long lastSync = 0;
+
+    /**
+     * @param directory
+     *            directory to write files to, created if missing
+     * @param prefix
+     *            file name prefix
+     * @param format
+     *            layout of the files
+     * @param maxFileSize
+     *            size in bytes to start a new file after
+     * @param fsyncInterval
+     *            milliseconds to keep between fsyncs, 0 to sync as soon as a batch is written,
+     *            negative to never sync
+     */
+    public FileSink(final File directory, final String prefix, final Format format,
+            final long maxFileSize, final long fsyncInterval) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.format = format;
+        this.maxFileSize = maxFileSize;
+        this.fsyncInterval = fsyncInterval;
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        roll();
+    }
+
+    @Override
+    public void write(final List<RawBsonDocument> batch) throws IOException {
+        final long sequence = append(batch);
+        if (fsyncInterval >= 0) {
+            awaitSync(sequence);
+        }
+    }
+
+    /**
+     * @return sequence number of the batch.
+     */
+    private synchronized long append(final List<RawBsonDocument> batch) throws IOException {
+        if (channel == null) {
+            throw new IOException("Sink is closed");
+        }
+        if (size >= maxFileSize) {
+            roll();
+        }
+
+        final ByteBuffer[] buffers;
+        if (format == Format.BSON) {
+            buffers = new ByteBuffer[batch.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = batch.get(i).getByteBuffer().asNIO();
+            }
+        } else {
+            buffers = new ByteBuffer[batch.size() * 2];
+            for (int i = 0; i < batch.size(); i++) {
+                buffers[i * 2] = ByteBuffer.wrap(batch.get(i).toJson().getBytes(StandardCharsets.UTF_8));
+                buffers[i * 2 + 1] = ByteBuffer.wrap(NEW_LINE);
+            }
+        }
+
+        long remaining = 0;
+        for (final ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        size += remaining;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+
+        return ++written;
+    }
+
+    /**
+     * Waits until the batch is synced to disk, syncing it along with all batches written so far
+     * unless another writer is syncing already.
+     */
+    private void awaitSync(final long sequence) throws IOException {
+        synchronized (this) {
+            try {
+                while (syncing && synced < sequence) {
+                    wait();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for fsync");
+            }
+            if (synced >= sequence) {
+                return;
+            }
+            syncing = true;
+        }
+        try {
+            sync();
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Syncs the current file, outside of the lock so that writers keep appending meanwhile.
+     */
+    private void sync() throws IOException {
+        final FileChannel target;
+        final long covered;
+        synchronized (this) {
+            final long delay = lastSync + fsyncInterval - System.currentTimeMillis();
+            if (delay > 0) {
+                // let more batches join the group
+                try {
+                    wait(delay);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for fsync");
+                }
+            }
+            target = channel;
+            covered = written;
+        }
+        try {
+            if (target != null) {
+                target.force(false);
+            }
+        } catch (final ClosedChannelException e) {
+            // rolled over or closed meanwhile, which syncs the file first
+            synchronized (this) {
+                if (synced < covered) {
+                    throw e;
+                }
+            }
+        }
+        synchronized (this) {
+            synced = Math.max(synced, covered);
+            lastSync = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            closeFile();
+        } catch (final IOException e) {
+            LogLog.warn("Failed to close file in " + directory, e);
+        }
+    }
+
+    private void roll() throws IOException {
+        closeFile();
+        final String name = String.format("%s-%s-%03d.%s", prefix,
+                new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()), ++files,
+                format.extension);
+        channel = FileChannel.open(new File(directory, name).toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        size = 0;
+    }
+
+    private void closeFile() throws IOException {
+        if (channel != null) {
+            if (fsyncInterval >= 0 && synced < written) {
+                channel.force(false);
+                synced = written;
+            }
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender.sink;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.RawBsonDocument;
+
+/**
+ * Sink that keeps events in memory. Intended for tests and for benchmarking conversion and
+ * buffering without a server: with retain set to false it only counts events and bytes.
+ */
+public class MemorySink implements EventSink {
+    private final boolean retain;
+    private final List<RawBsonDocument> events = new ArrayList<RawBsonDocument>();
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * @param retain
+     *            whether to keep written events or just count them
+     */
+    public MemorySink(final boolean retain) {
+        this.retain = retain;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void write(final List<RawBsonDocument> batch) {
+        if (retain) {
+            synchronized (events) {
+                events.addAll(batch);
+            }
+        }
+        for (RawBsonDocument event : batch) {
+            bytes.addAndGet(event.getByteBuffer().remaining());
+        }
+        count.addAndGet(batch.size());
+        batches.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return A copy of written events <i>(empty if events are not retained)</i>.
+     */
+    public List<RawBsonDocument> getEvents() {
+        synchronized (events) {
+            return new ArrayList<RawBsonDocument>(events);
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public void clear() {
+        synchronized (events) {
+            events.clear();
+        }
+        count.set(0);
+        bytes.set(0);
+        batches.set(0);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.focusit.log4jmongo.appender.sink;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.bson.RawBsonDocument;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Sink that inserts events into a MongoDB collection. Encoded events are passed to the driver as
+ * they are, a batch is sent with a single unordered insertMany.
+ * <p>
+ * The collection is either given, or obtained by a connector when the sink is opened, so that
+ * connecting to the server happens off the thread that activates the appender. A connector owns
+ * the client, it is disconnected when the sink is closed.
+ */
+public class MongoSink implements EventSink {
+
+    /**
+     * Sets up and tears down connection of a sink.
+     */
+    public interface Connector {
+        /**
+         * @return The collection to insert events into <i>(must not be null)</i>.
+         * @throws Exception
+         *             if connection can't be set up, it is tried again later
+         */
+        MongoCollection<?> connect() throws Exception;
+
+        /**
+         * Releases the connection, called once the sink is closed.
+         */
+        void disconnect();
+    }
+
+    private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+
+    private final Connector connector;
+    private volatile MongoCollection<RawBsonDocument> collection;
+
+    /**
+     * @param collection
+     *            The collection to insert events into <i>(must not be null)</i>.
+     */
+    public MongoSink(final MongoCollection<?> collection) {
+        assert collection != null : "collection must not be null";
+
+        this.connector = null;
+        this.collection = collection.withDocumentClass(RawBsonDocument.class);
+    }
+
+    /**
+     * @param connector
+     *            Connects to MongoDB and returns the collection to insert events into, called by
+     *            {@link #open()} <i>(must not be null)</i>.
+     */
+    public MongoSink(final Connector connector) {
+        assert connector != null : "connector must not be null";
+
+        this.connector = connector;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (connector == null) {
+            return;
+        }
+        try {
+            collection = connector.connect().withDocumentClass(RawBsonDocument.class);
+        } catch (final IOException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IOException("Failed to connect to MongoDB", e);
+        }
+    }
+
+    @Override
+    public void write(final List<RawBsonDocument> batch) throws IOException {
+        final MongoCollection<RawBsonDocument> collection = this.collection;
+        if (collection == null) {
+            throw new IOException("Not connected to MongoDB");
+        }
+        try {
+            if (batch.size() == 1) {
+                collection.insertOne(batch.get(0));
+            } else {
+                collection.insertMany(batch, UNORDERED);
+            }
+        } catch (final MongoException e) {
+            throw new IOException("Failed to insert " + batch.size() + " document(s) to MongoDB", e);
+        }
+    }
+
+    /**
+     * Disconnects the connector. A given collection is owned by the caller and left as it is.
+     */
+    @Override
+    public void close() {
+        if (connector != null) {
+            connector.disconnect();
+        }
+    }
+
+    /**
+     * @return The connector of the sink <i>(null if the collection was given)</i>.
+     */
+    public Connector getConnector() {
+        return connector;
+    }
+}
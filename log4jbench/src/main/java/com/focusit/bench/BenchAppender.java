@@ -0,0 +1,210 @@
+package com.focusit.bench;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+
+import com.focusit.log4jmongo.appender.EventBuffer;
+import com.focusit.log4jmongo.appender.SimpleMongoDbAppender;
+import com.focusit.log4jmongo.appender.sink.EventSink;
+import com.focusit.log4jmongo.appender.sink.FailoverSink;
+import com.focusit.log4jmongo.appender.sink.MemorySink;
+
+/**
+ * SimpleMongoDbAppender writing to a {@link FlakySink} instead of MongoDB. Everything on the way
+ * from the logging thread to the driver is the appender's own: conversion, tag, compression,
+ * buckets, buffer, retries, reconnects and, with fallback set, failover to a healthy stand-in
+ * cluster after failoverLatency ms. All properties of SimpleMongoDbAppender apply, connection
+ * properties are ignored. Faults of the stand-in are set with the sink* properties, see
+ * {@link Faults}.
+ * @author doki
+ *
+ */
+public class BenchAppender extends SimpleMongoDbAppender {
+	private long sinkLatency = 0;
+	private double sinkSpikeRate = 0;
+	private long sinkSpikeLatency = 0;
+	private long sinkStallEvery = 0;
+	private long sinkStallFor = 0;
+	private double sinkErrorRate = 0;
+	private long sinkErrorLatency = 0;
+	private long sinkOutageAt = 0;
+	private long sinkOutageFor = 0;
+	private boolean fallback = false;
+
+	private Faults faults = null;
+	private final MemorySink stored = new MemorySink(false);
+	private final MemorySink fallbackStored = new MemorySink(false);
+
+	@Override
+	public void activateOptions() {
+		faults = new Faults(sinkLatency, sinkSpikeRate, sinkSpikeLatency, sinkStallEvery, sinkStallFor,
+				sinkErrorRate, sinkErrorLatency, sinkOutageAt, sinkOutageFor);
+		super.activateOptions();
+	}
+
+	@Override
+	protected EventSink createSink() {
+		FlakySink primary = new FlakySink(faults, stored);
+		if(!fallback){
+			return compressing(primary);
+		}
+		return compressing(new FailoverSink(Arrays.asList("primary", "fallback"),
+				Arrays.asList(primary, new FlakySink(new Faults(), fallbackStored)),
+				getFailoverLatency(), getFailoverRecheckInterval()));
+	}
+
+	/**
+	 * There is no MongoDB connection to switch to.
+	 */
+	@Override
+	protected void opened(EventSink sink) {
+		initialized = true;
+	}
+
+	/**
+	 * Starts the timeline and the counters of faults over, when the measured part of a run begins.
+	 * Stored events are counted from the start, to be compared with all events logged.
+	 */
+	public void restart() {
+		faults.restart();
+	}
+
+	/**
+	 * @return events stored by the stand-in clusters, a batch hedged to the fallback may be stored twice
+	 */
+	public long getStored() {
+		return stored.getCount()+fallbackStored.getCount();
+	}
+
+	/**
+	 * @return faults of the stand-in, and what the buffer in front of it has done
+	 */
+	public Document getStats() {
+		Document result = new Document("faults", faults.toDocument())
+				.append("stored", LoadGenerator.number(stored.getCount()))
+				.append("storedBytes", LoadGenerator.number(stored.getBytes()))
+				.append("batches", LoadGenerator.number(stored.getBatches()));
+		if(fallback){
+			result.append("fallbackStored", LoadGenerator.number(fallbackStored.getCount()));
+		}
+		EventBuffer current = getBuffer();
+		if(current!=null){
+			// counters of the current buffer only, buffers replaced on reconnect are gone
+			result.append("buffer", new Document("queued", current.getQueued())
+					.append("queuedBytes", LoadGenerator.number(current.getQueuedBytes()))
+					.append("written", LoadGenerator.number(current.getWritten()))
+					.append("dropped", LoadGenerator.number(current.getDropped()))
+					.append("failed", LoadGenerator.number(current.getFailed()))
+					.append("retries", LoadGenerator.number(current.getRetries())));
+		}
+		return result;
+	}
+
+	public long getSinkLatency() {
+		return sinkLatency;
+	}
+
+	/**
+	 * @param sinkLatency ms every write to the stand-in takes
+	 */
+	public void setSinkLatency(long sinkLatency) {
+		this.sinkLatency = sinkLatency;
+	}
+
+	public String getSinkSpikeRate() {
+		return String.valueOf(sinkSpikeRate);
+	}
+
+	/**
+	 * @param sinkSpikeRate percent of writes taking sinkSpikeLatency, like 0.5
+	 */
+	public void setSinkSpikeRate(String sinkSpikeRate) {
+		this.sinkSpikeRate = Double.parseDouble(sinkSpikeRate);
+	}
+
+	public long getSinkSpikeLatency() {
+		return sinkSpikeLatency;
+	}
+
+	public void setSinkSpikeLatency(long sinkSpikeLatency) {
+		this.sinkSpikeLatency = sinkSpikeLatency;
+	}
+
+	public long getSinkStallEvery() {
+		return sinkStallEvery;
+	}
+
+	/**
+	 * @param sinkStallEvery ms from a stall to the next one, 0 for no stalls
+	 */
+	public void setSinkStallEvery(long sinkStallEvery) {
+		this.sinkStallEvery = sinkStallEvery;
+	}
+
+	public long getSinkStallFor() {
+		return sinkStallFor;
+	}
+
+	/**
+	 * @param sinkStallFor ms writes hang in every stall
+	 */
+	public void setSinkStallFor(long sinkStallFor) {
+		this.sinkStallFor = sinkStallFor;
+	}
+
+	public String getSinkErrorRate() {
+		return String.valueOf(sinkErrorRate);
+	}
+
+	/**
+	 * @param sinkErrorRate percent of writes failing, like 1
+	 */
+	public void setSinkErrorRate(String sinkErrorRate) {
+		this.sinkErrorRate = Double.parseDouble(sinkErrorRate);
+	}
+
+	public long getSinkErrorLatency() {
+		return sinkErrorLatency;
+	}
+
+	/**
+	 * @param sinkErrorLatency ms a failing write takes, like a driver timeout
+	 */
+	public void setSinkErrorLatency(long sinkErrorLatency) {
+		this.sinkErrorLatency = sinkErrorLatency;
+	}
+
+	public long getSinkOutageAt() {
+		return sinkOutageAt;
+	}
+
+	/**
+	 * @param sinkOutageAt ms into the measured run the outage begins
+	 */
+	public void setSinkOutageAt(long sinkOutageAt) {
+		this.sinkOutageAt = sinkOutageAt;
+	}
+
+	public long getSinkOutageFor() {
+		return sinkOutageFor;
+	}
+
+	/**
+	 * @param sinkOutageFor ms all writes fail, 0 for no outage
+	 */
+	public void setSinkOutageFor(long sinkOutageFor) {
+		this.sinkOutageFor = sinkOutageFor;
+	}
+
+	public boolean isFallback() {
+		return fallback;
+	}
+
+	/**
+	 * @param fallback fail over to a healthy stand-in cluster
+	 */
+	public void setFallback(boolean fallback) {
+		this.fallback = fallback;
+	}
+}
@@ -0,0 +1,162 @@
+package com.focusit.bench;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+/**
+ * Misbehaviour of the stand-in sink, the way a struggling MongoDB looks from the client:
+ * <ul>
+ * <li>every write takes latency ms, spikeRate percent of them take spikeLatency ms instead</li>
+ * <li>for the last stallFor ms of every stallEvery ms writes hang till the stall is over</li>
+ * <li>errorRate percent of writes fail, after errorLatency ms like a driver timing out</li>
+ * <li>from outageAt ms for outageFor ms all writes and connects fail</li>
+ * </ul>
+ * Stalls and the outage are timed from {@link #restart()}, so every run sees them at the same
+ * moments. Shared by all sinks of an appender, including the ones created on reconnect. Thread safe.
+ * @author doki
+ *
+ */
+public class Faults {
+	private final long latency;
+	private final double spikeRate;
+	private final long spikeLatency;
+	private final long stallEvery;
+	private final long stallFor;
+	private final double errorRate;
+	private final long errorLatency;
+	private final long outageAt;
+	private final long outageFor;
+
+	private volatile long origin = System.nanoTime();
+
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong spikes = new AtomicLong();
+	private final AtomicLong stalled = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong outageErrors = new AtomicLong();
+
+	/**
+	 * Sink without faults.
+	 */
+	public Faults() {
+		this(0, 0, 0, 0, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * @param latency ms every write takes
+	 * @param spikeRate percent of writes that take spikeLatency instead
+	 * @param spikeLatency ms of a slow write
+	 * @param stallEvery ms between the starts of stalls, 0 for no stalls
+	 * @param stallFor ms of a stall
+	 * @param errorRate percent of writes that fail
+	 * @param errorLatency ms a failing write or connect takes
+	 * @param outageAt ms since the start of the run when the outage begins
+	 * @param outageFor ms of the outage, 0 for no outage
+	 */
+	public Faults(long latency, double spikeRate, long spikeLatency, long stallEvery, long stallFor,
+			double errorRate, long errorLatency, long outageAt, long outageFor) {
+		this.latency = latency;
+		this.spikeRate = spikeRate/100;
+		this.spikeLatency = spikeLatency;
+		this.stallEvery = stallEvery;
+		this.stallFor = Math.min(stallFor, stallEvery);
+		this.errorRate = errorRate/100;
+		this.errorLatency = errorLatency;
+		this.outageAt = outageAt;
+		this.outageFor = outageFor;
+	}
+
+	/**
+	 * Starts the timeline of stalls and the outage over and clears the counters.
+	 */
+	public void restart() {
+		origin = System.nanoTime();
+		writes.set(0);
+		spikes.set(0);
+		stalled.set(0);
+		errors.set(0);
+		outageErrors.set(0);
+	}
+
+	/**
+	 * @throws IOException during the outage
+	 */
+	public void open() throws IOException {
+		if(inOutage(elapsed())){
+			outageErrors.incrementAndGet();
+			sleep(errorLatency);
+			throw new IOException("Stand-in sink is down");
+		}
+	}
+
+	/**
+	 * Waits as long as the write takes.
+	 * @throws IOException if the write fails
+	 */
+	public void write() throws IOException {
+		writes.incrementAndGet();
+		long elapsed = elapsed();
+		if(inOutage(elapsed)){
+			outageErrors.incrementAndGet();
+			sleep(errorLatency);
+			throw new IOException("Stand-in sink is down");
+		}
+		if(stallFor>0){
+			long phase = elapsed%stallEvery;
+			if(phase>=stallEvery-stallFor){
+				stalled.incrementAndGet();
+				sleep(stallEvery-phase);
+			}
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if(spikeRate>0 && random.nextDouble()<spikeRate){
+			spikes.incrementAndGet();
+			sleep(spikeLatency);
+		} else {
+			sleep(latency);
+		}
+		if(errorRate>0 && random.nextDouble()<errorRate){
+			errors.incrementAndGet();
+			sleep(errorLatency);
+			throw new IOException("Injected write error");
+		}
+	}
+
+	private long elapsed() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-origin);
+	}
+
+	private boolean inOutage(long elapsed) {
+		return outageFor>0 && elapsed>=outageAt && elapsed<outageAt+outageFor;
+	}
+
+	private static void sleep(long millis) throws IOException {
+		if(millis<=0){
+			return;
+		}
+		try{
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+	/**
+	 * @return the scenario and how often every fault happened
+	 */
+	public Document toDocument() {
+		return new Document("latency", LoadGenerator.number(latency)).append("spikeRate", spikeRate*100)
+				.append("spikeLatency", LoadGenerator.number(spikeLatency))
+				.append("stallEvery", LoadGenerator.number(stallEvery)).append("stallFor", LoadGenerator.number(stallFor))
+				.append("errorRate", errorRate*100).append("errorLatency", LoadGenerator.number(errorLatency))
+				.append("outageAt", LoadGenerator.number(outageAt)).append("outageFor", LoadGenerator.number(outageFor))
+				.append("writes", LoadGenerator.number(writes.get())).append("spikes", LoadGenerator.number(spikes.get()))
+				.append("stalled", LoadGenerator.number(stalled.get())).append("errors", LoadGenerator.number(errors.get()))
+				.append("outageErrors", LoadGenerator.number(outageErrors.get()));
+	}
+}
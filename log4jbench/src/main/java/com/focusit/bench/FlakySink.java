@@ -0,0 +1,46 @@
+package com.focusit.bench;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.bson.RawBsonDocument;
+
+import com.focusit.log4jmongo.appender.sink.EventSink;
+import com.focusit.log4jmongo.appender.sink.MemorySink;
+
+/**
+ * In-process stand-in for MongoDB: takes as long and fails as often as its {@link Faults} say,
+ * then counts the batch as stored.
+ * @author doki
+ *
+ */
+public class FlakySink implements EventSink {
+	private final Faults faults;
+	private final MemorySink stored;
+
+	/**
+	 * @param faults how the sink misbehaves
+	 * @param stored counts stored events, shared by the sinks created on reconnect
+	 */
+	public FlakySink(Faults faults, MemorySink stored) {
+		this.faults = faults;
+		this.stored = stored;
+	}
+
+	@Override
+	public void open() throws IOException {
+		faults.open();
+		stored.open();
+	}
+
+	@Override
+	public void write(List<RawBsonDocument> batch) throws IOException {
+		faults.write();
+		stored.write(batch);
+	}
+
+	@Override
+	public void close() {
+		stored.close();
+	}
+}
@@ -0,0 +1,95 @@
+package com.focusit.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.bson.Document;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Records every GC pause of the JVM into a histogram, from the notifications sent after each
+ * collection. Collectors that work concurrently with the application (CMS and G1 concurrent
+ * cycles, ZGC cycles) are counted but their durations are not pauses, so they are left out of the
+ * histogram. Totals of collection count and time are taken from the collector beans as well, they
+ * are there even on JVMs without notifications.
+ * @author doki
+ *
+ */
+public class GcMonitor implements NotificationListener {
+	private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private final List<NotificationEmitter> emitters = new ArrayList<>();
+	private final LatencyHistogram pauses = new LatencyHistogram();
+	private long[] startCounts;
+	private long[] startTimes;
+	private long concurrent;
+
+	/**
+	 * Starts recording, pauses before are forgotten.
+	 */
+	public synchronized void start() {
+		pauses.reset();
+		concurrent = 0;
+		startCounts = new long[collectors.size()];
+		startTimes = new long[collectors.size()];
+		for(int i = 0; i<collectors.size(); i++){
+			startCounts[i] = collectors.get(i).getCollectionCount();
+			startTimes[i] = collectors.get(i).getCollectionTime();
+		}
+		if(emitters.isEmpty()){
+			for(GarbageCollectorMXBean collector : collectors){
+				if(collector instanceof NotificationEmitter){
+					((NotificationEmitter) collector).addNotificationListener(this, null, null);
+					emitters.add((NotificationEmitter) collector);
+				}
+			}
+		}
+	}
+
+	public synchronized void stop() {
+		for(NotificationEmitter emitter : emitters){
+			try{
+				emitter.removeNotificationListener(this);
+			} catch (ListenerNotFoundException e) {
+				// not registered
+			}
+		}
+		emitters.clear();
+	}
+
+	@Override
+	public synchronized void handleNotification(Notification notification, Object handback) {
+		if(!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())){
+			return;
+		}
+		GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+		String name = info.getGcName();
+		if(name.contains("Concurrent") || name.contains("Cycles")){
+			concurrent++;
+			return;
+		}
+		pauses.record(info.getGcInfo().getDuration()*1000000);
+	}
+
+	/**
+	 * @return pause histogram in ms and collection totals by collector since {@link #start()}
+	 */
+	public synchronized Document toDocument() {
+		Document byCollector = new Document();
+		for(int i = 0; i<collectors.size(); i++){
+			GarbageCollectorMXBean collector = collectors.get(i);
+			byCollector.append(collector.getName(), new Document("count", LoadGenerator.number(collector.getCollectionCount()-startCounts[i]))
+					.append("time", LoadGenerator.number(collector.getCollectionTime()-startTimes[i])));
+		}
+		return new Document("pauses", pauses.toDocument(1000000)).append("concurrentCycles", LoadGenerator.number(concurrent))
+				.append("collectors", byCollector);
+	}
+}
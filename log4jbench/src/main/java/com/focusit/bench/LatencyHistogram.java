@@ -0,0 +1,120 @@
+package com.focusit.bench;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+
+/**
+ * Histogram of latencies in nanoseconds with buckets of at most 1/64 of their value, so
+ * percentiles are within 1.6% from 0 up to hours while the whole histogram takes 30KB.
+ * Recording allocates nothing. Not thread safe, every thread records into its own histogram and
+ * they are added up when the run is over.
+ * @author doki
+ *
+ */
+public class LatencyHistogram {
+	static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+	// values below are counted exactly, above them every power of two is split in SUB_BUCKETS
+	private static final int LINEAR = 128;
+	private static final int SUB_BUCKETS = 64;
+	private static final int SUB_BITS = 6;
+
+	private final long[] counts = new long[LINEAR+(64-SUB_BITS)*SUB_BUCKETS];
+	private long count;
+	private long total;
+	private long max;
+
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts[index(value)]++;
+		count++;
+		total += value;
+		if(value>max){
+			max = value;
+		}
+	}
+
+	public void add(LatencyHistogram other) {
+		for(int i = 0; i<counts.length; i++){
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+
+	private static int index(long value) {
+		if(value<LINEAR){
+			return (int) value;
+		}
+		// value>>shift is in [SUB_BUCKETS, 2*SUB_BUCKETS)
+		int shift = 63-Long.numberOfLeadingZeros(value)-SUB_BITS;
+		return LINEAR+(shift-1)*SUB_BUCKETS+(int) (value>>shift)-SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the greatest value of a bucket
+	 */
+	private static long highest(int index) {
+		if(index<LINEAR){
+			return index;
+		}
+		int shift = (index-LINEAR)/SUB_BUCKETS+1;
+		long sub = (index-LINEAR)%SUB_BUCKETS+SUB_BUCKETS;
+		return ((sub+1)<<shift)-1;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count>0 ? (double) total/count : 0;
+	}
+
+	/**
+	 * @param percentile from 0 to 100
+	 * @return value that percentile of recorded values don't exceed, 0 if nothing was recorded
+	 */
+	public long getValueAt(double percentile) {
+		long rank = (long) Math.ceil(count*percentile/100);
+		long seen = 0;
+		for(int i = 0; i<counts.length; i++){
+			seen += counts[i];
+			if(seen>=Math.max(1, rank) && counts[i]>0){
+				return Math.min(highest(i), max);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param unit nanoseconds in the unit of the report, e.g. 1000 for microseconds
+	 * @return count, mean, percentiles and max
+	 */
+	public Document toDocument(double unit) {
+		Document result = new Document("count", LoadGenerator.number(count))
+				.append("mean", round(getMean()/unit));
+		for(double percentile : PERCENTILES){
+			String name = "p"+(percentile==Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile));
+			result.append(name, round(getValueAt(percentile)/unit));
+		}
+		return result.append("max", round(max/unit));
+	}
+
+	private static double round(double value) {
+		return Math.round(value*100)/100.0;
+	}
+}
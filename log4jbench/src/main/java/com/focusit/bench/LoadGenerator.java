@@ -0,0 +1,357 @@
+package com.focusit.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.log4j.Appender;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.PropertyConfigurator;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * Measures how long application threads spend in log4j calls. Threads log at a fixed total rate
+ * with a mix of levels, MDC values and exceptions into the appender named bench, by default a
+ * {@link BenchAppender} in front of a slow and failing stand-in for MongoDB. The time of every
+ * call goes into a histogram, along with the time since the call was due: a thread held up by a
+ * slow call falls behind its schedule, which the call time alone doesn't show. The report is JSON,
+ * so runs of different appender settings under the same faults can be compared.
+ * @author doki
+ *
+ */
+public class LoadGenerator {
+	private static final String APPENDER = "bench";
+	private static final String APPENDER_PREFIX = "log4j.appender."+APPENDER+".";
+	private static final String DEFAULT_CONFIG = "bench.properties";
+	private static final int DEFAULT_THREADS = 16;
+	private static final int DEFAULT_RATE = 10000;
+	private static final int DEFAULT_DURATION = 60;
+	private static final int DEFAULT_WARMUP = 10;
+	private static final String DEFAULT_LEVELS = "DEBUG:10,INFO:70,WARN:15,ERROR:5";
+	private static final int DEFAULT_MDC = 2;
+	private static final int DEFAULT_EXCEPTIONS = 20;
+	private static final int DEFAULT_DEPTH = 30;
+	private static final int DEFAULT_MESSAGE = 100;
+	private static final int LOGGERS = 8;
+	private static final double MICROS = 1000;
+
+	public static void main(String[] args) throws org.apache.commons.cli.ParseException, IOException, InterruptedException {
+		Options options = new Options();
+		options.addOption(new Option("t", true, "logging threads (default "+DEFAULT_THREADS+")"));
+		options.addOption(new Option("r", true, "events per second of all threads, 0 for as fast as possible (default "+DEFAULT_RATE+")"));
+		options.addOption(new Option("d", true, "seconds to measure (default "+DEFAULT_DURATION+")"));
+		options.addOption(new Option("w", true, "seconds to log before measuring (default "+DEFAULT_WARMUP+")"));
+		options.addOption(new Option("levels", true, "weights of levels (default "+DEFAULT_LEVELS+")"));
+		options.addOption(new Option("mdc", true, "MDC values of every event (default "+DEFAULT_MDC+")"));
+		options.addOption(new Option("exceptions", true, "percent of WARN and ERROR events with an exception (default "+DEFAULT_EXCEPTIONS+")"));
+		options.addOption(new Option("depth", true, "stack depth of exceptions (default "+DEFAULT_DEPTH+")"));
+		options.addOption(new Option("message", true, "characters of a message (default "+DEFAULT_MESSAGE+")"));
+		options.addOption(new Option("config", true, "log4j properties with an appender named "+APPENDER+" (default "+DEFAULT_CONFIG+" from the jar)"));
+		options.addOption(Option.builder("set").hasArg().argName("property=value").desc("set a property of the "+APPENDER+" appender (may be repeated)").build());
+		options.addOption(new Option("name", true, "name of the run in the report"));
+		options.addOption(new Option("o", true, "file to write the report to (default standard output)"));
+		options.addOption(new Option("help", false, "print this help"));
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = parser.parse(options, args);
+		if(cmd.hasOption("help")){
+			new HelpFormatter().printHelp("java -cp log4jbench.jar com.focusit.bench.LoadGenerator", options);
+			return;
+		}
+
+		Properties config = new Properties();
+		try(InputStream in = cmd.hasOption("config") ? new FileInputStream(cmd.getOptionValue("config"))
+				: LoadGenerator.class.getClassLoader().getResourceAsStream(DEFAULT_CONFIG)){
+			config.load(in);
+		}
+		if(cmd.hasOption("set")){
+			for(String value : cmd.getOptionValues("set")){
+				int split = value.indexOf('=');
+				if(split<=0){
+					System.err.println("Expected property=value: "+value);
+					return;
+				}
+				config.setProperty(APPENDER_PREFIX+value.substring(0, split).trim(), value.substring(split+1).trim());
+			}
+		}
+
+		int threads = Integer.parseInt(cmd.getOptionValue("t", String.valueOf(DEFAULT_THREADS)));
+		int rate = Integer.parseInt(cmd.getOptionValue("r", String.valueOf(DEFAULT_RATE)));
+		int duration = Integer.parseInt(cmd.getOptionValue("d", String.valueOf(DEFAULT_DURATION)));
+		int warmup = Integer.parseInt(cmd.getOptionValue("w", String.valueOf(DEFAULT_WARMUP)));
+		String levels = cmd.getOptionValue("levels", DEFAULT_LEVELS);
+		Mix mix;
+		try{
+			mix = new Mix(levels, Integer.parseInt(cmd.getOptionValue("mdc", String.valueOf(DEFAULT_MDC))),
+					Double.parseDouble(cmd.getOptionValue("exceptions", String.valueOf(DEFAULT_EXCEPTIONS))),
+					Integer.parseInt(cmd.getOptionValue("depth", String.valueOf(DEFAULT_DEPTH))),
+					Integer.parseInt(cmd.getOptionValue("message", String.valueOf(DEFAULT_MESSAGE))));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+
+		PropertyConfigurator.configure(config);
+		Appender appender = Logger.getRootLogger().getAppender(APPENDER);
+		if(appender==null){
+			System.err.println("No appender named "+APPENDER+" on the root logger");
+			return;
+		}
+		BenchAppender bench = appender instanceof BenchAppender ? (BenchAppender) appender : null;
+		GcMonitor gc = new GcMonitor();
+
+		long start = System.nanoTime();
+		long measureFrom = start+TimeUnit.SECONDS.toNanos(warmup);
+		long measureTo = measureFrom+TimeUnit.SECONDS.toNanos(duration);
+		List<Worker> workers = new ArrayList<>();
+		for(int i = 0; i<threads; i++){
+			Worker worker = new Worker(i, threads, rate, mix, start, measureFrom, measureTo);
+			workers.add(worker);
+			worker.start();
+		}
+		sleepUntil(measureFrom);
+		if(bench!=null){
+			bench.restart();
+		}
+		gc.start();
+		sleepUntil(measureTo);
+
+		LatencyHistogram call = new LatencyHistogram();
+		LatencyHistogram intended = new LatencyHistogram();
+		long logged = 0;
+		for(Worker worker : workers){
+			worker.join();
+			call.add(worker.call);
+			intended.add(worker.intended);
+			logged += worker.logged;
+		}
+		gc.stop();
+		Document sink = bench!=null ? bench.getStats() : null;
+		long closeStart = System.nanoTime();
+		// waits till the buffer is written out
+		LogManager.shutdown();
+		long closeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-closeStart);
+
+		double seconds = duration>0 ? (double) duration : 1;
+		Document events = new Document("logged", number(logged)).append("measured", number(call.getCount()))
+				.append("throughput", number(Math.round(call.getCount()/seconds)));
+		if(bench!=null){
+			long stored = bench.getStored();
+			events.append("stored", number(stored)).append("lost", number(Math.max(0, logged-stored)));
+		}
+		Document latency = new Document("unit", "us").append("call", call.toDocument(MICROS));
+		if(rate>0){
+			latency.append("intended", intended.toDocument(MICROS));
+		}
+		Document appenderConfig = new Document("class", appender.getClass().getName());
+		for(String key : new TreeSet<>(config.stringPropertyNames())){
+			if(key.startsWith(APPENDER_PREFIX)){
+				appenderConfig.append(key.substring(APPENDER_PREFIX.length()), config.getProperty(key));
+			}
+		}
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Document report = new Document("name", cmd.getOptionValue("name", ""))
+				.append("date", dateFormat.format(new Date()))
+				.append("load", new Document("threads", threads).append("rate", rate).append("duration", duration)
+						.append("warmup", warmup).append("levels", levels).append("mdc", mix.mdc)
+						.append("exceptions", mix.exceptions*100).append("depth", mix.depth).append("message", mix.message.length()))
+				.append("appender", appenderConfig)
+				.append("events", events)
+				.append("latency", latency);
+		if(sink!=null){
+			report.append("sink", sink);
+		}
+		report.append("closeMillis", number(closeMillis)).append("gc", gc.toDocument());
+
+		String json = report.toJson(new JsonWriterSettings(JsonMode.STRICT, true));
+		if(cmd.hasOption("o")){
+			try(Writer writer = new OutputStreamWriter(new FileOutputStream(new File(cmd.getOptionValue("o"))), StandardCharsets.UTF_8)){
+				writer.write(json);
+			}
+			System.out.println(summary(call, events));
+		} else {
+			System.out.println(json);
+		}
+	}
+
+	private static String summary(LatencyHistogram call, Document events) {
+		return String.format("%d events/s, call p50 %.1fus p99 %.1fus p99.99 %.1fus max %.1fms, lost %s",
+				events.get("throughput"), call.getValueAt(50)/MICROS, call.getValueAt(99)/MICROS,
+				call.getValueAt(99.99)/MICROS, call.getMax()/MICROS/1000, events.containsKey("lost") ? events.get("lost") : "?");
+	}
+
+	/**
+	 * @return the value as Integer when it fits, so that strict JSON has a plain number for it
+	 */
+	static Object number(long value) {
+		return value>=Integer.MIN_VALUE && value<=Integer.MAX_VALUE ? (Object) (int) value : (Object) value;
+	}
+
+	private static void sleepUntil(long nanos) throws InterruptedException {
+		long left;
+		while((left = nanos-System.nanoTime())>0){
+			TimeUnit.NANOSECONDS.sleep(left);
+		}
+	}
+
+	/**
+	 * What threads log: levels by weight, MDC values, exceptions and message size.
+	 */
+	private static class Mix {
+		private final Level[] levels;
+		private final double[] cumulative;
+		private final int mdc;
+		private final double exceptions;
+		private final int depth;
+		private final String message;
+
+		Mix(String weights, int mdc, double exceptions, int depth, int message) {
+			String[] parts = weights.split(",");
+			levels = new Level[parts.length];
+			cumulative = new double[parts.length];
+			double total = 0;
+			for(int i = 0; i<parts.length; i++){
+				String[] pair = parts[i].trim().split(":");
+				if(pair.length!=2){
+					throw new IllegalArgumentException("Expected LEVEL:weight, got "+parts[i]);
+				}
+				levels[i] = Level.toLevel(pair[0].trim(), null);
+				if(levels[i]==null){
+					throw new IllegalArgumentException("Unknown level "+pair[0]);
+				}
+				total += Double.parseDouble(pair[1].trim());
+				cumulative[i] = total;
+			}
+			if(total<=0){
+				throw new IllegalArgumentException("Levels have no weight: "+weights);
+			}
+			for(int i = 0; i<cumulative.length; i++){
+				cumulative[i] /= total;
+			}
+			this.mdc = mdc;
+			this.exceptions = exceptions/100;
+			this.depth = depth;
+			StringBuilder text = new StringBuilder(message);
+			while(text.length()<message){
+				text.append("Order processed, payment authorised, items reserved. ");
+			}
+			this.message = text.substring(0, message);
+		}
+
+		Level level(ThreadLocalRandom random) {
+			double value = random.nextDouble();
+			for(int i = 0; i<cumulative.length-1; i++){
+				if(value<cumulative[i]){
+					return levels[i];
+				}
+			}
+			return levels[levels.length-1];
+		}
+	}
+
+	/**
+	 * Logs at its share of the rate till the end of the run, recording calls made in the measured part.
+	 */
+	private static class Worker extends Thread {
+		private final Mix mix;
+		private final long interval;
+		private final long start;
+		private final long measureFrom;
+		private final long measureTo;
+		private final Logger[] loggers = new Logger[LOGGERS];
+		private final Throwable[] failures = new Throwable[4];
+		final LatencyHistogram call = new LatencyHistogram();
+		final LatencyHistogram intended = new LatencyHistogram();
+		long logged;
+
+		Worker(int index, int threads, int rate, Mix mix, long start, long measureFrom, long measureTo) {
+			super("load-"+index);
+			this.mix = mix;
+			this.interval = rate>0 ? TimeUnit.SECONDS.toNanos(threads)/rate : 0;
+			// threads take turns instead of logging in bursts
+			this.start = start+interval*index/threads;
+			this.measureFrom = measureFrom;
+			this.measureTo = measureTo;
+			for(int i = 0; i<loggers.length; i++){
+				loggers[i] = Logger.getLogger("com.example.service.Service"+i);
+			}
+		}
+
+		@Override
+		public void run() {
+			// thrown once, logged many times like a failure repeating under load
+			for(int i = 0; i<failures.length; i++){
+				failures[i] = nested(mix.depth, i);
+			}
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long due = start;
+			for(long sequence = 0; ; sequence++){
+				if(interval>0){
+					due = start+sequence*interval;
+					long wait = due-System.nanoTime();
+					if(wait>0){
+						LockSupport.parkNanos(wait);
+					}
+				}
+				for(int i = 0; i<mix.mdc; i++){
+					MDC.put("key"+i, "value"+(sequence+i)%1000);
+				}
+				Logger logger = loggers[(int) (sequence%loggers.length)];
+				Level level = mix.level(random);
+				String message = mix.message;
+				Throwable failure = level.isGreaterOrEqual(Level.WARN) && random.nextDouble()<mix.exceptions
+						? failures[random.nextInt(failures.length)] : null;
+
+				long begin = System.nanoTime();
+				logger.log(level, message, failure);
+				long end = System.nanoTime();
+
+				logged++;
+				if(begin>=measureTo){
+					break;
+				}
+				if(begin>=measureFrom){
+					call.record(end-begin);
+					if(interval>0){
+						intended.record(end-due);
+					}
+				}
+			}
+			MDC.clear();
+		}
+
+		private static Throwable nested(int depth, int kind) {
+			if(depth>0){
+				return nested(depth-1, kind);
+			}
+			return new IllegalStateException("Injected failure "+kind, new IOException("Connection reset"));
+		}
+	}
+}
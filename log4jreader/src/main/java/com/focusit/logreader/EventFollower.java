@@ -0,0 +1,199 @@
+package com.focusit.logreader;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.bson.Document;
+
+import com.mongodb.CursorType;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Prints events as they are inserted, like tail -f.
+ *
+ * A capped collection is followed with a tailable awaitData cursor: the server holds every getMore
+ * till new events arrive or a second passes, so events show up as soon as they are inserted with no
+ * polling at all. The cursor dies when the collection is empty or wraps over its position, then it
+ * is opened again in insertion order.
+ *
+ * Other collections can't be tailed, they are polled for events by timestamp, which is served by the
+ * timestamp index, with _id only breaking ties. _id is no measure of time: ids given by the text
+ * parser are made of the source and offset. An event may also be inserted well after events with
+ * greater timestamps: buffered, retried or logged by a host with a clock behind. So polls and
+ * reopened cursors start {@value #OVERLAP} ms before the greatest printed timestamp, and skip the
+ * events already printed, which are remembered for that long. Events later than that are missed.
+ * @author doki
+ *
+ */
+class EventFollower {
+	private static final long REOPEN_DELAY = 1000;
+	private static final long POLL_INTERVAL = 1000;
+	private static final long OVERLAP = 30000;
+	private static final Document ID_AND_TIMESTAMP = new Document("_id", 1).append("timestamp", 1);
+	private static final Document ORDER = new Document("timestamp", 1).append("_id", 1);
+
+	private final MongoCollection<Document> collection;
+	private final EventQuery query;
+	private final EventLayout layout;
+	private final PrintWriter out;
+	private final int batchSize;
+	private final boolean capped;
+
+	private volatile boolean stopped = false;
+	// greatest printed timestamp
+	private Date last;
+	// events are not looked for before this time, events before following were printed already or not at all
+	private Date floor;
+	// ids printed within the overlap before last, by timestamp
+	private final TreeMap<Long, Set<Object>> printed = new TreeMap<>();
+
+	/**
+	 * @param collection collection to follow
+	 * @param capped whether the collection is capped and can be tailed
+	 * @param query filter of events to print
+	 * @param batchSize events per server round trip
+	 */
+	public EventFollower(MongoCollection<Document> collection, boolean capped, EventQuery query, EventLayout layout, PrintWriter out, int batchSize) {
+		this.collection = collection;
+		this.capped = capped;
+		this.query = query;
+		this.layout = layout;
+		this.out = out;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Starts after the given event, or with events logged from now on if it is null.
+	 */
+	public void setLast(Document event) {
+		last = event!=null ? event.getDate("timestamp") : null;
+		if(last!=null){
+			remember(last, event.get("_id"));
+		}
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Prints events till {@link #stop()} is called.
+	 */
+	public void follow() throws InterruptedException {
+		if(last==null){
+			last = new Date();
+		}
+		floor = last;
+		while(!stopped){
+			try{
+				if(capped){
+					tail();
+				} else {
+					poll();
+				}
+			} catch (MongoException e) {
+				System.err.println("Cursor failed, reopening: "+e.getMessage());
+			}
+			out.flush();
+			if(!stopped){
+				Thread.sleep(capped ? REOPEN_DELAY : POLL_INTERVAL);
+			}
+		}
+	}
+
+	private void tail() {
+		// natural order is insertion order, late events come after the ones printed before them
+		try(MongoCursor<Document> cursor = collection.find(query.filterAfter(windowStart())).projection(EventLayout.PROJECTION)
+				.sort(new Document("$natural", 1)).cursorType(CursorType.TailableAwait).batchSize(batchSize).iterator()){
+			while(!stopped){
+				Document event = cursor.tryNext();
+				if(event==null){
+					out.flush();
+					if(cursor.getServerCursor()==null){
+						// dead cursor, nothing more will arrive through it
+						return;
+					}
+					continue;
+				}
+				print(event);
+			}
+		}
+	}
+
+	private void poll() {
+		// only ids of the overlap are fetched, events are fetched if they were not printed yet
+		List<Object> late = new ArrayList<>();
+		Document filter = query.filterAfter(windowStart());
+		((Document) filter.get("timestamp")).append("$lte", last);
+		try(MongoCursor<Document> cursor = collection.find(filter).projection(ID_AND_TIMESTAMP).batchSize(batchSize).iterator()){
+			while(!stopped && cursor.hasNext()){
+				Document event = cursor.next();
+				if(!isPrinted(event)){
+					late.add(event.get("_id"));
+				}
+			}
+		}
+		if(!late.isEmpty()){
+			try(MongoCursor<Document> cursor = collection.find(new Document("_id", new Document("$in", late)))
+					.projection(EventLayout.PROJECTION).sort(ORDER).batchSize(batchSize).iterator()){
+				while(!stopped && cursor.hasNext()){
+					print(cursor.next());
+				}
+			}
+		}
+		try(MongoCursor<Document> cursor = collection.find(query.filterAfter(last)).projection(EventLayout.PROJECTION)
+				.sort(ORDER).batchSize(batchSize).iterator()){
+			while(!stopped && cursor.hasNext()){
+				print(cursor.next());
+			}
+		}
+	}
+
+	/**
+	 * @return time to look for events after: {@value #OVERLAP} ms before the greatest printed timestamp, not before the start
+	 */
+	private Date windowStart() {
+		long start = Math.max(last.getTime()-OVERLAP, floor.getTime());
+		return new Date(start);
+	}
+
+	private boolean isPrinted(Document event) {
+		Date timestamp = event.getDate("timestamp");
+		Set<Object> ids = timestamp!=null ? printed.get(timestamp.getTime()) : null;
+		return ids!=null && ids.contains(event.get("_id"));
+	}
+
+	/**
+	 * @return false if the event was printed already
+	 */
+	private boolean remember(Date timestamp, Object id) {
+		Set<Object> ids = printed.get(timestamp.getTime());
+		if(ids==null){
+			ids = new HashSet<>();
+			printed.put(timestamp.getTime(), ids);
+		}
+		return ids.add(id);
+	}
+
+	private void print(Document event) {
+		Date timestamp = event.getDate("timestamp");
+		if(timestamp!=null){
+			if(!remember(timestamp, event.get("_id"))){
+				return;
+			}
+			if(timestamp.after(last)){
+				last = timestamp;
+			}
+			// forget ids no window will start before any more
+			printed.headMap(windowStart().getTime(), false).clear();
+		}
+		out.print(layout.format(event));
+	}
+}
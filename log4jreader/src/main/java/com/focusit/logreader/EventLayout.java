@@ -0,0 +1,84 @@
+package com.focusit.logreader;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.bson.Document;
+
+import com.focusit.log4jmongo.appender.compress.FieldCompressor;
+
+/**
+ * Renders stored events back into text close to the log4j layout they were logged with:
+ * <pre>
+ * 2015-10-22 16:00:00,000 ERROR [main] com.example.Foo - message
+ * stack trace lines
+ * </pre>
+ * Only the fields in {@link #PROJECTION} are used, so nothing else has to be fetched. Fields
+ * compressed by the appender are decompressed.
+ * @author doki
+ *
+ */
+class EventLayout {
+	static final Document PROJECTION = new Document("timestamp", 1).append("level", 1).append("thread", 1)
+			.append("logger", 1).append("loggerName.fullyQualifiedClassName", 1).append("message", 1)
+			.append("stacktraces", 1).append("tag", 1).append("offloaded", 1);
+
+	private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss,SSS";
+
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+	private final StringBuilder line = new StringBuilder(256);
+
+	/**
+	 * @param timeZone time zone to print timestamps in
+	 */
+	public EventLayout(TimeZone timeZone) {
+		dateFormat.setTimeZone(timeZone);
+	}
+
+	/**
+	 * Not thread safe, every thread needs its own layout.
+	 * @param event stored event with the projected fields
+	 * @return text of the event ending with a line separator
+	 */
+	public String format(Document event) {
+		FieldCompressor.decode(event);
+		line.setLength(0);
+		Date timestamp = event.getDate("timestamp");
+		line.append(timestamp!=null ? dateFormat.format(timestamp) : "-").append(' ');
+		String level = event.getString("level");
+		line.append(level);
+		for(int i = level!=null ? level.length() : 4; i<5; i++){
+			line.append(' ');
+		}
+		line.append(" [").append(event.getString("thread")).append("] ");
+		String tag = event.getString("tag");
+		if(tag!=null){
+			line.append('{').append(tag).append("} ");
+		}
+		line.append(logger(event)).append(" - ").append(event.getString("message"));
+		Document offloaded = (Document) event.get("offloaded");
+		if(offloaded!=null && offloaded.containsKey("message")){
+			line.append(" [").append(((Document) offloaded.get("message")).get("length")).append(" chars in GridFS]");
+		}
+		line.append('\n');
+		String stacktraces = event.getString("stacktraces");
+		if(stacktraces!=null && stacktraces.length()>0){
+			line.append(stacktraces);
+			if(stacktraces.charAt(stacktraces.length()-1)!='\n'){
+				line.append('\n');
+			}
+		}
+		return line.toString();
+	}
+
+	private static String logger(Document event) {
+		String logger = event.getString("logger");
+		if(logger==null){
+			// events stored before the logger field was added
+			Document loggerName = (Document) event.get("loggerName");
+			logger = loggerName!=null ? loggerName.getString("fullyQualifiedClassName") : null;
+		}
+		return logger;
+	}
+}
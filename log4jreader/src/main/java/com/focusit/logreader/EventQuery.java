@@ -0,0 +1,145 @@
+package com.focusit.logreader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.bson.Document;
+
+/**
+ * Filter of events, translated into a query the server evaluates, so only matching events and only
+ * the printed fields leave the server.
+ *
+ * Level and time go first as equality and range on the fields of the {level, timestamp} index the
+ * appender builds, logger is matched by an anchored prefix, which is the only kind of regular
+ * expression an index on logger could serve.
+ * @author doki
+ *
+ */
+class EventQuery {
+	private static final String REGEX_SPECIAL = "\\^$.|?*+()[]{}";
+	static final List<String> LEVELS = Arrays.asList("TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL");
+
+	private Date from;
+	private Date to;
+	private List<String> levels;
+	private String loggerPrefix;
+	private String tag;
+	private String messageRegex;
+
+	/**
+	 * @param from first timestamp to match, null if unbounded
+	 * @param to timestamp to match events before, null if unbounded
+	 */
+	public EventQuery setTime(Date from, Date to) {
+		this.from = from;
+		this.to = to;
+		return this;
+	}
+
+	/**
+	 * @param levels comma separated levels, e.g. WARN,ERROR, or a level followed by + to match it and
+	 * all more severe ones, e.g. WARN+
+	 */
+	public EventQuery setLevels(String levels) {
+		String value = levels.trim().toUpperCase(Locale.ENGLISH);
+		if(value.endsWith("+")){
+			int lowest = LEVELS.indexOf(value.substring(0, value.length()-1));
+			if(lowest<0){
+				throw new IllegalArgumentException("Unknown level "+levels);
+			}
+			this.levels = LEVELS.subList(lowest, LEVELS.size());
+		} else {
+			this.levels = new ArrayList<>();
+			for(String level : value.split(",")){
+				this.levels.add(level.trim());
+			}
+		}
+		return this;
+	}
+
+	public EventQuery setLoggerPrefix(String loggerPrefix) {
+		this.loggerPrefix = loggerPrefix;
+		return this;
+	}
+
+	public EventQuery setTag(String tag) {
+		this.tag = tag;
+		return this;
+	}
+
+	/**
+	 * @param messageRegex regular expression the message has to contain a match of, evaluated by the
+	 * server against every event left by the other conditions
+	 */
+	public EventQuery setMessageRegex(String messageRegex) {
+		this.messageRegex = messageRegex;
+		return this;
+	}
+
+	public Date getFrom() {
+		return from;
+	}
+
+	/**
+	 * @return query document, empty if nothing is filtered
+	 */
+	public Document filter() {
+		Document filter = new Document();
+		if(levels!=null){
+			filter.append("level", levels.size()==1 ? levels.get(0) : new Document("$in", levels));
+		}
+		if(from!=null || to!=null){
+			Document range = new Document();
+			if(from!=null){
+				range.append("$gte", from);
+			}
+			if(to!=null){
+				range.append("$lt", to);
+			}
+			filter.append("timestamp", range);
+		}
+		if(tag!=null){
+			filter.append("tag", tag);
+		}
+		if(loggerPrefix!=null){
+			filter.append("logger", new Document("$regex", "^"+escape(loggerPrefix)));
+		}
+		if(messageRegex!=null){
+			filter.append("message", new Document("$regex", messageRegex));
+		}
+		return filter;
+	}
+
+	/**
+	 * Escapes every character of the prefix by itself, the server turns ^ followed by plain characters
+	 * into index bounds, but not a \Q...\E quoted one.
+	 */
+	private static String escape(String prefix) {
+		StringBuilder result = new StringBuilder(prefix.length()+8);
+		for(char c : prefix.toCharArray()){
+			if(REGEX_SPECIAL.indexOf(c)>=0){
+				result.append('\\');
+			}
+			result.append(c);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @param after time to match events logged after
+	 * @return query document of events matching this filter logged after the given time
+	 */
+	public Document filterAfter(Date after) {
+		Document filter = filter();
+		Document range = (Document) filter.get("timestamp");
+		if(range==null){
+			range = new Document();
+			filter.append("timestamp", range);
+		}
+		range.append("$gt", after);
+		return filter;
+	}
+}
@@ -0,0 +1,188 @@
+package com.focusit.logreader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Archives events of a time window into gzipped files, one per partition of the window, written in
+ * parallel. A manifest with the event count, size and SHA-256 of every file is written next to
+ * them. Exported events can be deleted, or the collection dropped, once they are safely on disk.
+ * @author doki
+ *
+ */
+public class LogExporter {
+	private static final String DEFAULT_HOST = "localhost";
+	private static final String DEFAULT_DATABASE = "log4mongo";
+	private static final String DEFAULT_COLLECTION = "logevents";
+	private static final String DEFAULT_PARTITION = "1h";
+	private static final int DEFAULT_BATCH_SIZE = 5000;
+
+	public static void main(String[] args) throws org.apache.commons.cli.ParseException, InterruptedException, IOException {
+		Options options = new Options();
+		options.addOption(new Option("h", true, "MongoDB host[:port] (default "+DEFAULT_HOST+")"));
+		options.addOption(new Option("d", true, "log database (default "+DEFAULT_DATABASE+")"));
+		options.addOption(new Option("c", true, "log collection (default "+DEFAULT_COLLECTION+")"));
+		options.addOption(new Option("o", true, "directory to write files and manifest to"));
+		options.addOption(new Option("from", true, "export events since this time, \"yyyy-MM-dd HH:mm:ss\" or ago like 30d (default oldest event)"));
+		options.addOption(new Option("to", true, "export events before this time, same formats as -from (default after newest event)"));
+		options.addOption(new Option("partition", true, "time span of a file like 15m, 1h or 1d (default "+DEFAULT_PARTITION+")"));
+		options.addOption(new Option("format", true, "json (one document per line, for mongoimport) or bson (for mongorestore), default json"));
+		options.addOption(new Option("j", true, "number of partitions exported concurrently (default number of cpus)"));
+		options.addOption(new Option("b", true, "events per server round trip (default "+DEFAULT_BATCH_SIZE+")"));
+		options.addOption(new Option("delete", false, "delete events of every exported partition"));
+		options.addOption(new Option("drop", false, "drop the collection if all of its events were exported"));
+		options.addOption(new Option("help", false, "print this help"));
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = parser.parse(options, args);
+		if(cmd.hasOption("help") || !cmd.hasOption("o")){
+			new HelpFormatter().printHelp("java -cp log4jreader.jar com.focusit.logreader.LogExporter -o <dir>", options);
+			return;
+		}
+
+		Date from;
+		Date to;
+		long partition;
+		PartitionExport.Format format;
+		try{
+			from = cmd.hasOption("from") ? LogReader.parseTime(cmd.getOptionValue("from")) : null;
+			to = cmd.hasOption("to") ? LogReader.parseTime(cmd.getOptionValue("to")) : null;
+			partition = LogReader.parseDuration(cmd.getOptionValue("partition", DEFAULT_PARTITION));
+			format = PartitionExport.Format.valueOf(cmd.getOptionValue("format", "json").toUpperCase(Locale.ENGLISH));
+		} catch (ParseException|IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		boolean whole = from==null && to==null;
+		if(cmd.hasOption("drop") && cmd.hasOption("delete")){
+			System.err.println("Use either -delete or -drop");
+			return;
+		}
+		if(cmd.hasOption("drop") && !whole){
+			System.err.println("The collection can be dropped only when all of it is exported, without -from and -to");
+			return;
+		}
+		int threads = Integer.parseInt(cmd.getOptionValue("j", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		int batchSize = Integer.parseInt(cmd.getOptionValue("b", String.valueOf(DEFAULT_BATCH_SIZE)));
+		File directory = new File(cmd.getOptionValue("o"));
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			System.err.println("Can't create "+directory);
+			return;
+		}
+
+		MongoClient mongo = new MongoClient(new ServerAddress(cmd.getOptionValue("h", DEFAULT_HOST)));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try{
+			MongoCollection<Document> collection = mongo.getDatabase(cmd.getOptionValue("d", DEFAULT_DATABASE))
+					.getCollection(cmd.getOptionValue("c", DEFAULT_COLLECTION));
+			// an event written after the export started may not be in any file
+			Object newestId = cmd.hasOption("drop") ? newestId(collection) : null;
+			if(from==null){
+				Date oldest = edge(collection, 1);
+				if(oldest==null){
+					System.out.println("No events to export");
+					return;
+				}
+				// files of whole partitions get round names
+				from = new Date(oldest.getTime()-oldest.getTime()%partition);
+			}
+			if(to==null){
+				Date newest = edge(collection, -1);
+				to = new Date(newest!=null ? newest.getTime()+1 : from.getTime());
+			}
+
+			List<Future<Document>> results = new ArrayList<>();
+			for(long start = from.getTime(); start<to.getTime(); start += partition){
+				Date end = new Date(Math.min(start+partition, to.getTime()));
+				results.add(executor.submit(new PartitionExport(collection, directory, format, new Date(start), end, batchSize, cmd.hasOption("delete"))));
+			}
+
+			List<Document> partitions = new ArrayList<>();
+			long total = 0;
+			int failed = 0;
+			for(Future<Document> result : results){
+				try{
+					Document entry = result.get();
+					partitions.add(entry);
+					total += entry.getLong("count");
+					System.out.println(entry.getString("file")+": "+entry.getLong("count")+" events");
+				} catch (ExecutionException e) {
+					failed++;
+					System.err.println("Partition failed: "+e.getCause());
+				}
+			}
+
+			Document manifest = new Document("database", collection.getNamespace().getDatabaseName())
+					.append("collection", collection.getNamespace().getCollectionName())
+					.append("format", format.name().toLowerCase(Locale.ENGLISH))
+					.append("from", from).append("to", to).append("count", total)
+					.append("failed", failed).append("partitions", partitions);
+			File manifestFile = new File(directory, collection.getNamespace().getCollectionName()+"-manifest.json");
+			try(Writer writer = new OutputStreamWriter(new FileOutputStream(manifestFile), StandardCharsets.UTF_8)){
+				writer.write(manifest.toJson(new JsonWriterSettings(JsonMode.STRICT, true)));
+			}
+			System.out.println("Exported "+total+" events into "+partitions.size()+" files, manifest "+manifestFile);
+
+			if(cmd.hasOption("drop")){
+				long stored = collection.count();
+				Object newestNow = newestId(collection);
+				if(newestId==null ? newestNow!=null : !newestId.equals(newestNow)){
+					System.err.println("Not dropping "+collection.getNamespace()+": events were written during the export");
+				} else if(failed==0 && stored==total){
+					collection.drop();
+					System.out.println("Dropped "+collection.getNamespace());
+				} else {
+					System.err.println("Not dropping "+collection.getNamespace()+": exported "+total+" of "+stored+" events");
+				}
+			}
+		} finally {
+			executor.shutdown();
+			mongo.close();
+		}
+	}
+
+	/**
+	 * @return the greatest _id, null if the collection is empty
+	 */
+	private static Object newestId(MongoCollection<Document> collection) {
+		Document event = collection.find().projection(new Document("_id", 1)).sort(new Document("_id", -1)).limit(1).first();
+		return event!=null ? event.get("_id") : null;
+	}
+
+	/**
+	 * @param order 1 for the oldest, -1 for the newest event
+	 * @return timestamp of the oldest or newest event, null if there are none
+	 */
+	private static Date edge(MongoCollection<Document> collection, int order) {
+		Document event = collection.find(new Document("timestamp", new Document("$exists", true)))
+				.projection(new Document("timestamp", 1)).sort(new Document("timestamp", order)).limit(1).first();
+		return event!=null ? event.getDate("timestamp") : null;
+	}
+}
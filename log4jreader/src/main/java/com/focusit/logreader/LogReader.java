@@ -0,0 +1,226 @@
+package com.focusit.logreader;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.bson.Document;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Prints events stored by the appender as text: the last events matching a filter, events of a time
+ * window, or, with -follow, events as they arrive.
+ * @author doki
+ *
+ */
+public class LogReader {
+	private static final String DEFAULT_HOST = "localhost";
+	private static final String DEFAULT_DATABASE = "log4mongo";
+	private static final String DEFAULT_COLLECTION = "logevents";
+	private static final int DEFAULT_LAST = 100;
+	private static final int DEFAULT_FOLLOW_LAST = 10;
+	private static final int DEFAULT_BATCH_SIZE = 1000;
+	private static final int OUTPUT_BUFFER = 64 * 1024;
+	private static final Pattern RELATIVE_TIME = Pattern.compile("(\\d+)([smhd])");
+	// events by timestamp, then by _id
+	private static final Comparator<Document> TIME_ORDER = new Comparator<Document>() {
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public int compare(Document a, Document b) {
+			Date timeA = a.getDate("timestamp");
+			Date timeB = b.getDate("timestamp");
+			if(timeA==null || timeB==null){
+				return timeA==timeB ? 0 : timeA==null ? -1 : 1;
+			}
+			int result = timeA.compareTo(timeB);
+			if(result!=0){
+				return result;
+			}
+			Object idA = a.get("_id");
+			Object idB = b.get("_id");
+			if(idA instanceof Comparable && idA.getClass()==idB.getClass()){
+				return ((Comparable) idA).compareTo(idB);
+			}
+			return String.valueOf(idA).compareTo(String.valueOf(idB));
+		}
+	};
+
+	public static void main(String[] args) throws org.apache.commons.cli.ParseException, InterruptedException {
+		Options options = new Options();
+		options.addOption(new Option("h", true, "MongoDB host[:port] (default "+DEFAULT_HOST+")"));
+		options.addOption(new Option("d", true, "log database (default "+DEFAULT_DATABASE+")"));
+		options.addOption(new Option("c", true, "log collection (default "+DEFAULT_COLLECTION+")"));
+		options.addOption(new Option("l", true, "levels to print, e.g. WARN,ERROR, or WARN+ for WARN and more severe"));
+		options.addOption(new Option("logger", true, "print events of loggers starting with this prefix"));
+		options.addOption(new Option("tag", true, "print events with this tag"));
+		options.addOption(new Option("grep", true, "print events with messages containing a match of this regular expression"));
+		options.addOption(new Option("from", true, "print events since this time, \"yyyy-MM-dd HH:mm:ss\" or ago like 15m, 2h, 1d"));
+		options.addOption(new Option("to", true, "print events before this time, same formats as -from"));
+		options.addOption(new Option("n", true, "number of events to print, the last ones unless -from is given (default "+DEFAULT_LAST+", "+DEFAULT_FOLLOW_LAST+" with -follow)"));
+		options.addOption(new Option("follow", false, "keep printing events as they are inserted"));
+		options.addOption(new Option("b", true, "events per server round trip (default "+DEFAULT_BATCH_SIZE+")"));
+		options.addOption(new Option("utc", false, "print timestamps in UTC rather than local time"));
+		options.addOption(new Option("help", false, "print this help"));
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = parser.parse(options, args);
+		if(cmd.hasOption("help")){
+			new HelpFormatter().printHelp("java -jar log4jreader.jar", options);
+			return;
+		}
+
+		EventQuery query = new EventQuery();
+		try{
+			query.setTime(cmd.hasOption("from") ? parseTime(cmd.getOptionValue("from")) : null,
+					cmd.hasOption("to") ? parseTime(cmd.getOptionValue("to")) : null);
+			if(cmd.hasOption("l")){
+				query.setLevels(cmd.getOptionValue("l"));
+			}
+		} catch (ParseException|IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		query.setLoggerPrefix(cmd.getOptionValue("logger")).setTag(cmd.getOptionValue("tag")).setMessageRegex(cmd.getOptionValue("grep"));
+
+		boolean follow = cmd.hasOption("follow");
+		int last = Integer.parseInt(cmd.getOptionValue("n", String.valueOf(follow ? DEFAULT_FOLLOW_LAST : DEFAULT_LAST)));
+		int batchSize = Integer.parseInt(cmd.getOptionValue("b", String.valueOf(DEFAULT_BATCH_SIZE)));
+		EventLayout layout = new EventLayout(cmd.hasOption("utc") ? TimeZone.getTimeZone("UTC") : TimeZone.getDefault());
+		final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), OUTPUT_BUFFER));
+
+		MongoClient mongo = new MongoClient(new ServerAddress(cmd.getOptionValue("h", DEFAULT_HOST)));
+		try{
+			MongoDatabase database = mongo.getDatabase(cmd.getOptionValue("d", DEFAULT_DATABASE));
+			String collectionName = cmd.getOptionValue("c", DEFAULT_COLLECTION);
+			MongoCollection<Document> collection = database.getCollection(collectionName);
+
+			Document newest;
+			if(query.getFrom()!=null && !follow){
+				newest = printRange(collection, query, layout, out, last, batchSize);
+			} else {
+				newest = printLast(collection, query, layout, out, last);
+			}
+			out.flush();
+
+			if(follow){
+				final EventFollower follower = new EventFollower(collection, isCapped(database, collectionName), query, layout, out, batchSize);
+				follower.setLast(newest);
+				final Thread main = Thread.currentThread();
+				Runtime.getRuntime().addShutdownHook(new Thread(){
+					@Override
+					public void run() {
+						// an awaitData getMore returns within a second, then the output is flushed
+						follower.stop();
+						try {
+							main.join();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+				follower.follow();
+			}
+		} finally {
+			out.flush();
+			mongo.close();
+		}
+	}
+
+	/**
+	 * Prints events of a time window oldest first, streaming them in batches.
+	 * @return the last printed event, null if none
+	 */
+	private static Document printRange(MongoCollection<Document> collection, EventQuery query, EventLayout layout, PrintWriter out, int limit, int batchSize) {
+		Document newest = null;
+		try(MongoCursor<Document> cursor = collection.find(query.filter()).projection(EventLayout.PROJECTION)
+				.sort(new Document("timestamp", 1)).limit(limit).batchSize(batchSize).iterator()){
+			while(cursor.hasNext()){
+				Document event = cursor.next();
+				out.print(layout.format(event));
+				newest = event;
+			}
+		}
+		return newest;
+	}
+
+	/**
+	 * Prints the last events, oldest first. Only as many events as are printed are fetched.
+	 * @return the newest event, null if none
+	 */
+	private static Document printLast(MongoCollection<Document> collection, EventQuery query, EventLayout layout, PrintWriter out, int count) {
+		if(count<=0){
+			return null;
+		}
+		List<Document> events = new ArrayList<>(count);
+		// the timestamp index serves the sort, ids don't follow time and only break ties of the fetched events
+		try(MongoCursor<Document> cursor = collection.find(query.filter()).projection(EventLayout.PROJECTION)
+				.sort(new Document("timestamp", -1)).limit(count).batchSize(count).iterator()){
+			while(cursor.hasNext()){
+				events.add(cursor.next());
+			}
+		}
+		if(events.isEmpty()){
+			return null;
+		}
+		Collections.sort(events, TIME_ORDER);
+		for(Document event : events){
+			out.print(layout.format(event));
+		}
+		return events.get(events.size()-1);
+	}
+
+	private static boolean isCapped(MongoDatabase database, String collectionName) {
+		Document stats = database.runCommand(new Document("collStats", collectionName));
+		return Boolean.TRUE.equals(stats.get("capped"));
+	}
+
+	/**
+	 * Parses time given in command line, absolute in local time zone or relative to now.
+	 */
+	static Date parseTime(String value) throws ParseException {
+		if(RELATIVE_TIME.matcher(value.trim()).matches()){
+			return new Date(System.currentTimeMillis()-parseDuration(value));
+		}
+		return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(value.trim());
+	}
+
+	/**
+	 * Parses a duration like 30s, 15m, 2h or 1d.
+	 * @return milliseconds
+	 */
+	static long parseDuration(String value) {
+		Matcher duration = RELATIVE_TIME.matcher(value.trim());
+		if(!duration.matches()){
+			throw new IllegalArgumentException("Duration like 30s, 15m, 2h or 1d expected: "+value);
+		}
+		long amount = Long.parseLong(duration.group(1));
+		switch(duration.group(2)){
+		case "s": return amount*1000L;
+		case "m": return amount*60*1000L;
+		case "h": return amount*60*60*1000L;
+		default: return amount*24*60*60*1000L;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.focusit.logreader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPOutputStream;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.result.DeleteResult;
+
+/**
+ * Exports events of one time partition into a gzipped file and optionally deletes them afterwards.
+ *
+ * Events are streamed from the cursor to the file as they arrive, as raw BSON bytes or as one JSON
+ * document per line, so memory use doesn't depend on the size of the partition. The file is written
+ * under a temporary name, synced to disk and renamed when it is complete, a file with the final
+ * name is never partial. Events are deleted only after that, by the timestamp range up to the latest
+ * exported timestamp. Unless that range holds exactly the exported events, which it doesn't when
+ * events were added to the partition meanwhile, nothing is deleted and the partition is exported
+ * again by the next run.
+ * @author doki
+ *
+ */
+class PartitionExport implements Callable<Document> {
+	enum Format {
+		BSON(".bson.gz"), JSON(".json.gz");
+
+		private final String extension;
+
+		private Format(String extension) {
+			this.extension = extension;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final MongoCollection<RawBsonDocument> collection;
+	private final File directory;
+	private final Format format;
+	private final Date from;
+	private final Date to;
+	private final int batchSize;
+	private final boolean delete;
+
+	/**
+	 * @param collection collection to export from
+	 * @param directory directory to write the file to
+	 * @param from first timestamp of the partition
+	 * @param to timestamp the partition ends before
+	 * @param delete whether to delete exported events
+	 */
+	public PartitionExport(MongoCollection<Document> collection, File directory, Format format, Date from, Date to, int batchSize, boolean delete) {
+		this.collection = collection.withDocumentClass(RawBsonDocument.class);
+		this.directory = directory;
+		this.format = format;
+		this.from = from;
+		this.to = to;
+		this.batchSize = batchSize;
+		this.delete = delete;
+	}
+
+	/**
+	 * @return manifest entry of the partition
+	 */
+	@Override
+	public Document call() throws IOException, NoSuchAlgorithmException {
+		SimpleDateFormat name = new SimpleDateFormat("yyyyMMdd-HHmmss");
+		name.setTimeZone(TimeZone.getTimeZone("UTC"));
+		File file = new File(directory, collection.getNamespace().getCollectionName()+"-"+name.format(from)+format.extension);
+		File partial = new File(directory, file.getName()+".part");
+		Document filter = new Document("timestamp", new Document("$gte", from).append("$lt", to));
+
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		long count = 0;
+		long latest = Long.MIN_VALUE;
+		try(FileOutputStream fileOut = new FileOutputStream(partial);
+				GZIPOutputStream out = new GZIPOutputStream(new DigestOutputStream(
+				new BufferedOutputStream(fileOut, BUFFER_SIZE), digest), BUFFER_SIZE);
+				MongoCursor<RawBsonDocument> cursor = collection.find(filter).batchSize(batchSize).iterator()){
+			Writer json = format==Format.JSON ? new OutputStreamWriter(out, StandardCharsets.UTF_8) : null;
+			while(cursor.hasNext()){
+				RawBsonDocument event = cursor.next();
+				if(json!=null){
+					json.write(event.toJson());
+					json.write('\n');
+				} else {
+					ByteBuffer bytes = event.getByteBuffer().asNIO();
+					out.write(bytes.array(), bytes.arrayOffset()+bytes.position(), bytes.remaining());
+				}
+				latest = Math.max(latest, event.getDateTime("timestamp").getValue());
+				count++;
+			}
+			if(json!=null){
+				json.flush();
+			}
+			out.finish();
+			out.flush();
+			// the file is on disk before it gets the final name and events are deleted
+			fileOut.getFD().sync();
+		}
+		if(!partial.renameTo(file)){
+			throw new IOException("Failed to rename "+partial+" to "+file);
+		}
+		syncDirectory();
+
+		Document entry = new Document("file", file.getName()).append("from", from).append("to", to)
+				.append("count", count).append("bytes", file.length()).append("sha256", hex(digest.digest()));
+		if(delete){
+			entry.append("deleted", delete(count, latest));
+		}
+		return entry;
+	}
+
+	/**
+	 * Deletes the exported events, by the range from the partition start to the latest exported
+	 * timestamp, which holds just them unless events were added or deleted meanwhile.
+	 * @param count number of exported events
+	 * @param latest latest exported timestamp
+	 * @return number of deleted events
+	 */
+	private long delete(long count, long latest) {
+		if(count==0){
+			return 0;
+		}
+		Document exported = new Document("timestamp", new Document("$gte", from).append("$lte", new Date(latest)));
+		long found = collection.count(exported);
+		if(found!=count){
+			System.err.println("Kept the events of "+from+" - "+to+", "+found+" events instead of "+count+" exported are there now");
+			return 0;
+		}
+		DeleteResult result = collection.deleteMany(exported);
+		if(result.getDeletedCount()!=count){
+			System.err.println("Deleted "+result.getDeletedCount()+" of "+count+" exported events of "+from+" - "+to);
+		}
+		return result.getDeletedCount();
+	}
+
+	/**
+	 * Makes the rename durable where the file system allows to sync a directory.
+	 */
+	private void syncDirectory() {
+		try(FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)){
+			channel.force(true);
+		} catch (IOException e) {
+			// not supported on every platform, e.g. Windows
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder result = new StringBuilder(bytes.length*2);
+		for(byte b : bytes){
+			result.append(Character.forDigit((b>>4)&0xf, 16)).append(Character.forDigit(b&0xf, 16));
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,163 @@
+package com.focusit.textparser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.ByteBuf;
+import org.bson.Document;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import com.focusit.log4jmongo.appender.CollectionProvisioner;
+import com.mongodb.MongoClient;
+
+/**
+ * Writes events into a mongorestore compatible dump instead of a live MongoDB. A .bson file is
+ * just a sequence of length-prefixed BSON documents, so every batch is encoded in memory and
+ * written to a file channel with a single gathering write.
+ *
+ * Every writer thread writes its own part, parts are rolled over by size. A part is a complete
+ * dump directory of its own:
+ *
+ * <pre>
+ * dump/0001/log4mongo/logevents.bson
+ * dump/0001/log4mongo/logevents.metadata.json
+ * dump/0002/log4mongo/logevents.bson
+ * ...
+ * </pre>
+ *
+ * so all parts are loaded into the same collection concurrently, e.g.
+ * <code>for part in dump/*; do mongorestore $part &amp; done</code>.
+ * @author doki
+ *
+ */
+class BsonDump implements Closeable {
+	private static final EncoderContext COLLECTIBLE = EncoderContext.builder().isEncodingCollectibleDocument(true).build();
+
+	private final File dir;
+	private final String databaseName;
+	private final String collectionName;
+	private final long partSize;
+	// DBObject values produced by appender need default registry of the driver
+	private final DocumentCodec codec = new DocumentCodec(MongoClient.getDefaultCodecRegistry(), new BsonTypeClassMap());
+
+	private final AtomicInteger parts = new AtomicInteger();
+	private final List<Part> openParts = new ArrayList<>();
+	private final ThreadLocal<Part> currentPart = new ThreadLocal<>();
+
+	/**
+	 * @param dir dump directory
+	 * @param databaseName database to restore into
+	 * @param collectionName collection to restore into
+	 * @param partSize size of .bson file to start a new part after
+	 */
+	public BsonDump(File dir, String databaseName, String collectionName, long partSize) {
+		this.dir = dir;
+		this.databaseName = databaseName;
+		this.collectionName = collectionName;
+		this.partSize = partSize;
+	}
+
+	/**
+	 * Appends documents to the part of the calling thread.
+	 * @param documents documents to write, missing _id is generated
+	 * @throws IOException
+	 */
+	public void write(List<Document> documents) throws IOException {
+		Part part = currentPart.get();
+		if (part == null || part.size >= partSize) {
+			if (part != null) {
+				part.close();
+			}
+			part = newPart();
+			currentPart.set(part);
+		}
+
+		BasicOutputBuffer output = new BasicOutputBuffer();
+		for (Document document : documents) {
+			codec.generateIdIfAbsentFromDocument(document);
+			codec.encode(new BsonBinaryWriter(output), document, COLLECTIBLE);
+		}
+		List<ByteBuf> buffers = output.getByteBuffers();
+		ByteBuffer[] nioBuffers = new ByteBuffer[buffers.size()];
+		for (int i = 0; i < nioBuffers.length; i++) {
+			nioBuffers[i] = buffers.get(i).asNIO();
+		}
+		long remaining = output.getSize();
+		while (remaining > 0) {
+			remaining -= part.channel.write(nioBuffers);
+		}
+		part.size += output.getSize();
+		output.close();
+	}
+
+	private Part newPart() throws IOException {
+		File partDir = new File(new File(dir, String.format("%04d", parts.incrementAndGet())), databaseName);
+		if (!partDir.mkdirs()) {
+			throw new IOException("Can't create dump directory " + partDir);
+		}
+		writeMetadata(new File(partDir, collectionName + ".metadata.json"));
+		Part part = new Part(FileChannel.open(new File(partDir, collectionName + ".bson").toPath(),
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+		synchronized (openParts) {
+			openParts.add(part);
+		}
+		return part;
+	}
+
+	private void writeMetadata(File file) throws IOException {
+		String ns = databaseName + "." + collectionName;
+		List<Document> indexes = new ArrayList<>();
+		indexes.add(new Document("v", 1).append("key", new Document("_id", 1)).append("name", "_id_").append("ns", ns));
+		for (Document key : CollectionProvisioner.eventIndexes()) {
+			StringBuilder name = new StringBuilder();
+			for (String field : key.keySet()) {
+				name.append(name.length() > 0 ? "_" : "").append(field).append('_').append(key.get(field));
+			}
+			indexes.add(new Document("v", 1).append("key", key).append("name", name.toString()).append("ns", ns));
+		}
+		Document metadata = new Document("options", new Document()).append("indexes", indexes);
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(metadata.toJson().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (openParts) {
+			for (Part part : openParts) {
+				part.close();
+			}
+			openParts.clear();
+		}
+	}
+
+	private static class Part implements Closeable {
+		private final FileChannel channel;
+		private long size = 0;
+
+		Part(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (channel.isOpen()) {
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.focusit.textparser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Persistent position of ingestion: identity of the file and offset of the event boundary up to
+ * which all events are acknowledged by MongoDB.
+ *
+ * Batches are written concurrently and acknowledged out of order, so the stored offset only moves
+ * over a contiguous run of acknowledged batches. A restart resumes from the first batch that may be
+ * missing.
+ * @author doki
+ *
+ */
+class Checkpoint {
+	private static final String KEY_SOURCE = "source";
+	private static final String KEY_OFFSET = "offset";
+
+	private final File file;
+	private String sourceKey;
+	private long offset;
+
+	private long nextSequence = 0;
+	private final TreeMap<Long, Mark> acknowledged = new TreeMap<>();
+
+	private Checkpoint(File file, String sourceKey, long offset) {
+		this.file = file;
+		this.sourceKey = sourceKey;
+		this.offset = offset;
+	}
+
+	/**
+	 * @param file checkpoint file, it is not required to exist
+	 * @return last saved checkpoint or an empty one
+	 * @throws IOException
+	 */
+	public static Checkpoint load(File file) throws IOException {
+		if (!file.exists()) {
+			return new Checkpoint(file, null, 0);
+		}
+		Properties props = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			props.load(in);
+		}
+		return new Checkpoint(file, props.getProperty(KEY_SOURCE), Long.parseLong(props.getProperty(KEY_OFFSET, "0")));
+	}
+
+	public synchronized String getSourceKey() {
+		return sourceKey;
+	}
+
+	public synchronized long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Marks batch as written and saves checkpoint if it moved.
+	 * @param sequence number of the batch in reading order, starting with 0
+	 * @param batchSourceKey identity of the file batch was read from
+	 * @param endOffset event boundary right after the batch
+	 * @throws IOException
+	 */
+	public synchronized void acknowledged(long sequence, String batchSourceKey, long endOffset) throws IOException {
+		acknowledged.put(sequence, new Mark(batchSourceKey, endOffset));
+		Mark last = null;
+		Mark mark;
+		while ((mark = acknowledged.remove(nextSequence)) != null) {
+			last = mark;
+			nextSequence++;
+		}
+		if (last != null) {
+			sourceKey = last.sourceKey;
+			offset = last.offset;
+			save();
+		}
+	}
+
+	/**
+	 * @param attrs attributes of a log file
+	 * @return identity of the file that changes when file is rotated
+	 */
+	public static String getSourceKey(BasicFileAttributes attrs) {
+		// fileKey is (dev, inode) on unix, it may be unavailable on other platforms
+		Object key = attrs.fileKey();
+		return key != null ? key.toString() : String.valueOf(attrs.creationTime().toMillis());
+	}
+
+	private void save() throws IOException {
+		Properties props = new Properties();
+		if (sourceKey != null) {
+			props.setProperty(KEY_SOURCE, sourceKey);
+		}
+		props.setProperty(KEY_OFFSET, String.valueOf(offset));
+
+		// write a new file and replace old one, so a crash never leaves a broken checkpoint
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			props.store(out, null);
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static class Mark {
+		private final String sourceKey;
+		private final long offset;
+
+		Mark(String sourceKey, long offset) {
+			this.sourceKey = sourceKey;
+			this.offset = offset;
+		}
+	}
+}
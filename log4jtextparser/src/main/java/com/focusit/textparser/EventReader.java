@@ -0,0 +1,125 @@
+package com.focusit.textparser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a log file into raw events. Every line matching event pattern starts a new event, all
+ * lines up to the next event line belong to it. Lines before the first event are skipped.
+ *
+ * An event is complete only when the next event starts. Over a growing file (follow mode) the last
+ * event is kept pending until that happens or until it is explicitly flushed.
+ * @author doki
+ *
+ */
+class EventReader implements EventSource {
+	private final LineReader reader;
+	private final Pattern eventPattern;
+	private final boolean follow;
+	private final String sourceKey;
+	private final String sourceId;
+	private boolean exhausted = false;
+
+	// event being collected, it is complete when the next event header is read
+	private List<String> current = null;
+	private long currentOffset = 0;
+
+	public EventReader(LineReader reader, Pattern eventPattern) {
+		this(reader, eventPattern, false, null, null);
+	}
+
+	/**
+	 * @param reader lines of the file
+	 * @param eventPattern regex of an event header line
+	 * @param follow whether file may grow after end of stream is reached
+	 * @param sourceKey identity of the file
+	 * @param sourceId id of the file for event ids <i>(may be null)</i>
+	 */
+	public EventReader(LineReader reader, Pattern eventPattern, boolean follow, String sourceKey, String sourceId) {
+		this.reader = reader;
+		this.eventPattern = eventPattern;
+		this.follow = follow;
+		this.sourceKey = sourceKey;
+		this.sourceId = sourceId;
+	}
+
+	/**
+	 * @return offset of the first byte that does not belong to an already returned event
+	 */
+	public long getPosition() {
+		return current != null ? currentOffset : reader.getPosition();
+	}
+
+	/**
+	 * @return offset of the first byte that was not read from the file yet
+	 */
+	public long getReadPosition() {
+		return reader.getPosition();
+	}
+
+	@Override
+	public RawEvent next() throws IOException {
+		while (true) {
+			long lineOffset = reader.getPosition();
+			String line = reader.readLine();
+			if (line == null) {
+				if (follow) {
+					return null;
+				}
+				exhausted = true;
+				return flush();
+			}
+			if (eventPattern.matcher(line).matches()) {
+				RawEvent complete = complete(lineOffset);
+				current = new ArrayList<>();
+				current.add(line);
+				currentOffset = lineOffset;
+				if (complete != null) {
+					return complete;
+				}
+			} else if (current != null) {
+				current.add(line);
+			}
+			// lines before the first event are skipped
+		}
+	}
+
+	/**
+	 * Completes pending event without waiting for the next one.
+	 * @return pending event or null if there is none
+	 */
+	public RawEvent flush() {
+		return complete(reader.getPosition());
+	}
+
+	private RawEvent complete(long endOffset) {
+		if (current == null) {
+			return null;
+		}
+		RawEvent event = new RawEvent(current, currentOffset, endOffset);
+		current = null;
+		return event;
+	}
+
+	@Override
+	public boolean isExhausted() {
+		return exhausted && current == null;
+	}
+
+	@Override
+	public String getSourceKey() {
+		return sourceKey;
+	}
+
+	@Override
+	public String getSourceId() {
+		return sourceId;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
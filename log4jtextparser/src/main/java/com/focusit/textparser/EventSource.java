@@ -0,0 +1,34 @@
+package com.focusit.textparser;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Source of raw events for {@link IngestPipeline}.
+ * @author doki
+ *
+ */
+interface EventSource extends Closeable {
+
+	/**
+	 * @return next event or null if there is no complete event available right now
+	 * @throws IOException
+	 */
+	RawEvent next() throws IOException;
+
+	/**
+	 * @return true if source will never return events again
+	 */
+	boolean isExhausted();
+
+	/**
+	 * @return identity of the file events are currently read from (may be null)
+	 */
+	String getSourceKey();
+
+	/**
+	 * @return id of the file for deterministic event ids, null if driver should generate ids
+	 * @throws IOException
+	 */
+	String getSourceId() throws IOException;
+}
@@ -0,0 +1,187 @@
+package com.focusit.textparser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a log file that is still being written, like tail -F. Detects rotation (file is replaced by
+ * a new one, so its inode changes) and truncation (file becomes shorter than current position)
+ * by polling file attributes and starts over from the beginning of the new file.
+ * @author doki
+ *
+ */
+class FollowSource implements EventSource {
+	private final File file;
+	private final Pattern eventPattern;
+	private final Charset charset;
+	private final long pollMillis;
+	private final long idleMillis;
+	private final SourceIdentity identity;
+
+	private EventReader reader = null;
+	private String sourceKey = null;
+	private String sourceId = null;
+	private boolean rotated = false;
+	private long lastReadPosition = -1;
+	private long lastDataTime = System.currentTimeMillis();
+	private volatile boolean stopped = false;
+	private boolean exhausted = false;
+
+	/**
+	 * @param file file to follow
+	 * @param eventPattern regex of an event header line
+	 * @param charset charset of the file
+	 * @param checkpoint position to resume from, ignored if file was rotated or truncated since
+	 * @param pollMillis delay between checks for new data
+	 * @param idleMillis time after which the last event is considered complete if file doesn't grow
+	 * @param identity how to identify file for event ids <i>(may be null)</i>
+	 * @throws IOException
+	 */
+	public FollowSource(File file, Pattern eventPattern, Charset charset, Checkpoint checkpoint, long pollMillis,
+			long idleMillis, SourceIdentity identity) throws IOException {
+		this.file = file;
+		this.eventPattern = eventPattern;
+		this.charset = charset;
+		this.pollMillis = pollMillis;
+		this.idleMillis = idleMillis;
+		this.identity = identity;
+
+		BasicFileAttributes attrs = readAttributes();
+		if (attrs != null) {
+			String key = Checkpoint.getSourceKey(attrs);
+			boolean resume = key.equals(checkpoint.getSourceKey()) && attrs.size() >= checkpoint.getOffset();
+			open(key, resume ? checkpoint.getOffset() : 0);
+		}
+	}
+
+	/**
+	 * Makes source return pending event and stop.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public RawEvent next() throws IOException {
+		if (exhausted) {
+			return null;
+		}
+		if (stopped) {
+			exhausted = true;
+			return reader != null ? reader.flush() : null;
+		}
+
+		if (reader != null) {
+			RawEvent event = reader.next();
+			if (event != null) {
+				return event;
+			}
+			long now = System.currentTimeMillis();
+			if (reader.getReadPosition() != lastReadPosition) {
+				lastReadPosition = reader.getReadPosition();
+				lastDataTime = now;
+			} else if (now - lastDataTime >= idleMillis) {
+				// nothing was written for a while, so the last event is complete
+				event = reader.flush();
+				if (event != null) {
+					return event;
+				}
+			}
+		}
+
+		if (rotated) {
+			// old file is drained, its last event is complete
+			RawEvent last = reader.flush();
+			reader.close();
+			reader = null;
+			rotated = false;
+			// new file is opened on the next call, after the batch of the old one is flushed
+			return last;
+		}
+
+		checkRotation();
+		if (!rotated) {
+			sleep();
+		}
+		return null;
+	}
+
+	private void checkRotation() throws IOException {
+		BasicFileAttributes attrs = readAttributes();
+		if (attrs == null) {
+			// file is renamed and a new one is not created yet
+			return;
+		}
+		if (reader == null) {
+			open(Checkpoint.getSourceKey(attrs), 0);
+			return;
+		}
+		if (!Checkpoint.getSourceKey(attrs).equals(sourceKey)) {
+			// old file is read to the end before switching to the new one
+			System.out.println("Log file " + file + " is rotated");
+			rotated = true;
+		} else if (attrs.size() < reader.getReadPosition()) {
+			System.out.println("Log file " + file + " is truncated");
+			rotated = true;
+		}
+	}
+
+	private void open(String key, long offset) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		in.getChannel().position(offset);
+		sourceKey = key;
+		sourceId = null;
+		reader = new EventReader(new LineReader(in, charset, offset, true), eventPattern, true, key, null);
+		lastReadPosition = offset;
+		lastDataTime = System.currentTimeMillis();
+	}
+
+	private BasicFileAttributes readAttributes() throws IOException {
+		try {
+			return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	private void sleep() throws IOException {
+		try {
+			Thread.sleep(pollMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stop();
+		}
+	}
+
+	@Override
+	public boolean isExhausted() {
+		return exhausted;
+	}
+
+	@Override
+	public String getSourceKey() {
+		return sourceKey;
+	}
+
+	@Override
+	public String getSourceId() throws IOException {
+		// a new file may be empty when opened, so its content is hashed when the first event is read
+		if (identity != null && sourceId == null) {
+			sourceId = identity.of(file, sourceKey);
+		}
+		return sourceId;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+}
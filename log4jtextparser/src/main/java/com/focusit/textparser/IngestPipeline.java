@@ -0,0 +1,408 @@
+package com.focusit.textparser;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Staged ingestion: reader -> parsers -> converters -> bulk writers. Stages are connected with
+ * bounded queues, so a slow stage blocks the previous one instead of piling events up in memory,
+ * while reading the file and writing to MongoDB overlap in time.
+ *
+ * Events travel through the stages in batches of batchSize, each batch is written with a single
+ * unordered insertMany. When source has no events right now (followed file doesn't grow) a
+ * partial batch is sent to keep the lag low.
+ *
+ * With a checkpoint, the position of every acknowledged batch is saved, so next run may resume
+ * where this one stopped.
+ *
+ * Several sources (files) may be read concurrently, each by its own thread calling
+ * {@link #read(EventSource)}, while the stages are shared. Batches are parsed, converted and written
+ * concurrently, so they are not stored in the order they were read, not even those of one file,
+ * events are ordered by timestamp when read back. Total size of text held by batches that are not written yet is limited by a memory budget.
+ *
+ * When the source provides an id, every event gets a deterministic _id (source id + offset). Then
+ * events already stored by a previous run are skipped as duplicates (or replaced with upsert), and
+ * failed batches are simply retried. With a checkpoint, a batch that fails all retries stops the
+ * pipeline, so the next run resumes from it.
+ * @author doki
+ *
+ */
+public class IngestPipeline {
+	private static final Batch POISON = new Batch(null);
+	private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+	private static final BulkWriteOptions UNORDERED_BULK = new BulkWriteOptions().ordered(false);
+	private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+	private static final int DUPLICATE_KEY = 11000;
+	private static final String KEY_ID = "_id";
+	private static final int MAX_RETRIES = 5;
+	private static final long RETRY_DELAY = 1000;
+
+	private final LogParser parser;
+	private final MongoCollection<Document> collection;
+	private final int batchSize;
+	private final int workers;
+	private final int writers;
+	private final ProgressReporter progress;
+	private final Checkpoint checkpoint;
+	// budget of in-flight text in kilobytes
+	private final Semaphore memory;
+	private final int memoryKb;
+	private boolean upsert = false;
+	private BsonDump dump = null;
+
+	private final List<Thread> threads = new ArrayList<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final BlockingQueue<Batch> rawBatches;
+	private final BlockingQueue<Batch> parsedBatches;
+	private final BlockingQueue<Batch> documentBatches;
+
+	private volatile Throwable failure = null;
+
+	/**
+	 * @param parser parser and BSON converter of events
+	 * @param collection target collection <i>(may be null when writing a dump)</i>
+	 * @param batchSize events per insertMany
+	 * @param workers number of parser threads and of converter threads
+	 * @param writers number of concurrent bulk writers
+	 * @param progress ingestion counters
+	 * @param checkpoint position to save after each written batch <i>(may be null)</i>
+	 * @param memoryMb limit of text read but not written yet, in megabytes
+	 */
+	public IngestPipeline(LogParser parser, MongoCollection<Document> collection, int batchSize, int workers,
+			int writers, ProgressReporter progress, Checkpoint checkpoint, int memoryMb) {
+		this.parser = parser;
+		this.collection = collection;
+		this.batchSize = batchSize;
+		this.workers = workers;
+		this.writers = writers;
+		this.progress = progress;
+		this.checkpoint = checkpoint;
+		this.memoryKb = memoryMb * 1024;
+		this.memory = new Semaphore(memoryKb);
+		// two batches per consumer are enough to keep every stage busy
+		this.rawBatches = new ArrayBlockingQueue<>(workers * 2);
+		this.parsedBatches = new ArrayBlockingQueue<>(workers * 2);
+		this.documentBatches = new ArrayBlockingQueue<>(writers * 2);
+	}
+
+	/**
+	 * @param upsert whether to replace events with deterministic ids that are already stored
+	 */
+	public void setUpsert(boolean upsert) {
+		this.upsert = upsert;
+	}
+
+	/**
+	 * @param dump dump to write events to instead of MongoDB collection <i>(may be null)</i>
+	 */
+	public void setDump(BsonDump dump) {
+		this.dump = dump;
+	}
+
+	/**
+	 * Reads all events on the calling thread and returns when every batch is written.
+	 * @param source source of events
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void run(EventSource source) throws IOException, InterruptedException {
+		start();
+		try {
+			read(source);
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * Starts parser, converter and writer threads.
+	 */
+	public void start() {
+		startStage(threads, "parser", workers, rawBatches, parsedBatches, workers, new Step() {
+			@Override
+			public void process(Batch batch) {
+				parse(batch);
+			}
+		});
+		startStage(threads, "converter", workers, parsedBatches, documentBatches, writers, new Step() {
+			@Override
+			public void process(Batch batch) {
+				convert(batch);
+			}
+		});
+		startStage(threads, "writer", writers, documentBatches, null, 0, new Step() {
+			@Override
+			public void process(Batch batch) {
+				write(batch);
+			}
+		});
+	}
+
+	/**
+	 * Waits until all batches read so far are written and stops the threads.
+	 * @throws IOException if ingestion failed
+	 * @throws InterruptedException
+	 */
+	public void finish() throws IOException, InterruptedException {
+		for (int i = 0; i < workers; i++) {
+			rawBatches.put(POISON);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		if (failure != null) {
+			throw new IOException("Ingestion failed", failure);
+		}
+	}
+
+	/**
+	 * Reads all events of the source on the calling thread and sends them to the stages. May be
+	 * called from several threads at once.
+	 * @param source source of events
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void read(EventSource source) throws IOException, InterruptedException {
+		Batch batch = new Batch(new ArrayList<RawEvent>(batchSize));
+		while (failure == null) {
+			RawEvent event = source.next();
+			if (event != null) {
+				if (batch.size() == 0) {
+					batch.sourceKey = source.getSourceKey();
+					batch.sourceId = source.getSourceId();
+				}
+				batch.add(event);
+			}
+			if (batch.size() >= batchSize || (event == null && batch.size() > 0)) {
+				batch.sequence = sequence.getAndIncrement();
+				batch.permits = Math.min(memoryKb, (int) (batch.getBytes() / 1024) + 1);
+				memory.acquire(batch.permits);
+				rawBatches.put(batch);
+				batch = new Batch(new ArrayList<RawEvent>(batchSize));
+			}
+			if (event == null && source.isExhausted()) {
+				break;
+			}
+		}
+	}
+
+	private void parse(Batch batch) {
+		List<Document> events = new ArrayList<>(batch.size());
+		List<Long> offsets = new ArrayList<>(batch.size());
+		for (RawEvent raw : batch.raw) {
+			try {
+				events.add(parser.parseEvent(raw));
+				offsets.add(raw.getOffset());
+			} catch (ParseException e) {
+				System.err.println("Skipping event at offset " + raw.getOffset() + ": " + e.getMessage());
+				progress.failed(1);
+			}
+		}
+		batch.raw = null;
+		batch.events = events;
+		batch.offsets = offsets;
+	}
+
+	private void convert(Batch batch) {
+		List<Document> documents = new ArrayList<>(batch.events.size());
+		for (int i = 0; i < batch.events.size(); i++) {
+			Document document = parser.convert(batch.events.get(i));
+			if (batch.sourceId != null) {
+				document.put(KEY_ID, SourceIdentity.eventId(batch.sourceId, batch.offsets.get(i)));
+			}
+			documents.add(document);
+		}
+		batch.events = null;
+		batch.documents = documents;
+	}
+
+	private void write(Batch batch) {
+		int written = dump != null ? dump(batch) : store(batch);
+		if (written < 0) {
+			if (checkpoint != null) {
+				// the checkpoint can't move past a missing batch, acknowledgements of later ones
+				// would pile up for nothing, so stop and let the next run resume from this batch
+				throw new IllegalStateException("Batch at offset " + batch.offset + " is not stored");
+			}
+			return;
+		}
+		progress.written(written, batch.getBytes());
+		if (checkpoint != null) {
+			try {
+				checkpoint.acknowledged(batch.sequence, batch.sourceKey, batch.endOffset);
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't save checkpoint", e);
+			}
+		}
+	}
+
+	private int dump(Batch batch) {
+		try {
+			dump.write(batch.documents);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't write dump", e);
+		}
+		return batch.documents.size();
+	}
+
+	/**
+	 * @return number of stored events, or -1 if batch failed
+	 */
+	private int store(Batch batch) {
+		int written = batch.documents.size();
+		for (int attempt = 1; written > 0; attempt++) {
+			try {
+				send(batch.documents);
+				break;
+			} catch (MongoBulkWriteException e) {
+				// server has processed the batch, rejected documents won't get better on retry
+				int duplicates = 0;
+				for (BulkWriteError error : e.getWriteErrors()) {
+					if (error.getCode() == DUPLICATE_KEY) {
+						duplicates++;
+					}
+				}
+				int failed = e.getWriteErrors().size() - duplicates;
+				written -= e.getWriteErrors().size();
+				progress.duplicates(duplicates);
+				if (failed > 0) {
+					progress.failed(failed);
+					System.err.println("Failed to insert " + failed + " event(s): " + e.getMessage());
+				}
+				break;
+			} catch (MongoException e) {
+				// documents keep their _id between attempts, so a retry doesn't duplicate events
+				if (attempt > MAX_RETRIES) {
+					progress.failed(written);
+					System.err.println("Failed to insert batch at offset " + batch.offset + ": " + e.getMessage());
+					return -1;
+				}
+				System.err.println("Retrying batch at offset " + batch.offset + ": " + e.getMessage());
+				try {
+					Thread.sleep(RETRY_DELAY * attempt);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while retrying batch", ie);
+				}
+			}
+		}
+		return written;
+	}
+
+	private void send(List<Document> documents) {
+		if (!upsert) {
+			collection.insertMany(documents, UNORDERED);
+			return;
+		}
+		List<ReplaceOneModel<Document>> replacements = new ArrayList<>(documents.size());
+		for (Document document : documents) {
+			replacements.add(new ReplaceOneModel<>(Filters.eq(KEY_ID, document.get(KEY_ID)), document, UPSERT));
+		}
+		collection.bulkWrite(replacements, UNORDERED_BULK);
+	}
+
+	private void startStage(List<Thread> threads, String name, int count, final BlockingQueue<Batch> in,
+			final BlockingQueue<Batch> out, final int consumers, final Step step) {
+		final AtomicInteger running = new AtomicInteger(count);
+		for (int i = 0; i < count; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Batch batch;
+						while ((batch = in.take()) != POISON) {
+							boolean passed = false;
+							try {
+								// after a failure batches are only drained to let the readers stop
+								if (failure == null) {
+									step.process(batch);
+									if (out != null) {
+										out.put(batch);
+										passed = true;
+									}
+								}
+							} catch (RuntimeException e) {
+								failure = e;
+							} finally {
+								// batch is written or dropped, its text is not held anymore
+								if (!passed) {
+									memory.release(batch.permits);
+								}
+							}
+						}
+						// the last worker of a stage stops the next stage
+						if (running.decrementAndGet() == 0 && out != null) {
+							for (int c = 0; c < consumers; c++) {
+								out.put(POISON);
+							}
+						}
+					} catch (InterruptedException e) {
+						failure = e;
+					}
+				}
+			}, name + "-" + (i + 1));
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	private interface Step {
+		void process(Batch batch);
+	}
+
+	/**
+	 * Events of one insertMany on their way through the stages.
+	 */
+	static class Batch {
+		private List<RawEvent> raw;
+		private List<Document> events;
+		private List<Document> documents;
+		private List<Long> offsets;
+		private long sequence;
+		private int permits;
+		private String sourceKey;
+		private String sourceId;
+		private long offset = -1;
+		private long endOffset = -1;
+
+		Batch(List<RawEvent> raw) {
+			this.raw = raw;
+		}
+
+		void add(RawEvent event) {
+			if (offset < 0) {
+				offset = event.getOffset();
+			}
+			endOffset = event.getEndOffset();
+			raw.add(event);
+		}
+
+		int size() {
+			return raw.size();
+		}
+
+		long getBytes() {
+			return endOffset - offset;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.focusit.textparser;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Resolves parser inputs and opens them. An input may be a file, a directory (all its files are
+ * taken, rotated and compressed ones too) or a glob pattern like logs/**&#47;app.log*. Checkpoints
+ * of the parser, that are kept next to the log by default, are not taken from directories and
+ * patterns, neither are temporary files.
+ * @author doki
+ *
+ */
+class InputFiles {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String GLOB_CHARS = "*?[{";
+	private static final String CHECKPOINT = ".checkpoint";
+	private static final String TMP = ".tmp";
+
+	/**
+	 * @param inputs file names, directories and glob patterns
+	 * @return matching files sorted by name
+	 * @throws IOException if an input doesn't exist
+	 */
+	public static List<File> resolve(List<String> inputs) throws IOException {
+		List<File> files = new ArrayList<>();
+		for (String input : inputs) {
+			if (isGlob(input)) {
+				files.addAll(glob(input));
+				continue;
+			}
+			File file = new File(input);
+			if (file.isDirectory()) {
+				File[] children = file.listFiles();
+				List<File> dirFiles = new ArrayList<>();
+				for (File child : children) {
+					if (child.isFile() && !child.isHidden() && !isCheckpoint(child)) {
+						dirFiles.add(child);
+					}
+				}
+				Collections.sort(dirFiles);
+				files.addAll(dirFiles);
+			} else if (file.isFile()) {
+				files.add(file);
+			} else {
+				throw new IOException("No such file or directory: " + input);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * @return true if file is gzip or bzip2 compressed, judging by its name
+	 */
+	public static boolean isCompressed(File file) {
+		String name = file.getName();
+		return name.endsWith(".gz") || name.endsWith(".bz2");
+	}
+
+	/**
+	 * Opens file, decompressing gzip and bzip2 files on the fly.
+	 */
+	public static InputStream open(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			String name = file.getName();
+			if (name.endsWith(".gz")) {
+				return new GZIPInputStream(in, BUFFER_SIZE);
+			}
+			if (name.endsWith(".bz2")) {
+				return new BZip2CompressorInputStream(new BufferedInputStream(in, BUFFER_SIZE), true);
+			}
+			return in;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if file is a checkpoint of the parser or a temporary file, like the one a checkpoint
+	 *         is saved to
+	 */
+	private static boolean isCheckpoint(File file) {
+		String name = file.getName();
+		return name.endsWith(CHECKPOINT) || name.endsWith(TMP);
+	}
+
+	private static boolean isGlob(String input) {
+		for (int i = 0; i < input.length(); i++) {
+			if (GLOB_CHARS.indexOf(input.charAt(i)) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<File> glob(String pattern) throws IOException {
+		// walk from the deepest directory that has no glob characters in its path
+		Path patternPath = Paths.get(pattern);
+		Path base = patternPath.getRoot();
+		for (Path part : patternPath) {
+			if (isGlob(part.toString())) {
+				break;
+			}
+			base = base == null ? part : base.resolve(part);
+		}
+		final boolean relative = base == null;
+		final Path start = relative ? Paths.get(".") : base;
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		final List<File> files = new ArrayList<>();
+		if (!Files.isDirectory(start)) {
+			return files;
+		}
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				Path name = relative ? start.relativize(file) : file;
+				if (attrs.isRegularFile() && matcher.matches(name) && !isCheckpoint(file.toFile())) {
+					files.add(file.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(files);
+		return files;
+	}
+}
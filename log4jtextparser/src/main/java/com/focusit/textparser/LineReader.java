@@ -0,0 +1,121 @@
+package com.focusit.textparser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Line reader over a raw byte stream that keeps track of the byte offset of every line it returns.
+ * Java's buffered readers hide the position behind the charset decoder, but offsets are what the
+ * ingestion pipeline reports progress and checkpoints in.
+ *
+ * In follow mode the end of stream is not final: an incomplete last line is left unread until its
+ * line separator is written, and reading may be retried later when the file has grown.
+ * @author doki
+ *
+ */
+class LineReader implements Closeable {
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream in;
+	private final Charset charset;
+	private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+	private int start = 0;
+	private int end = 0;
+	private long position = 0;
+	private boolean eof = false;
+	private final boolean follow;
+
+	public LineReader(InputStream in, Charset charset) {
+		this(in, charset, 0, false);
+	}
+
+	/**
+	 * @param in stream to read
+	 * @param charset charset of the file
+	 * @param position offset of the first byte of the stream in the file
+	 * @param follow whether to wait for the rest of an incomplete last line
+	 */
+	public LineReader(InputStream in, Charset charset, long position, boolean follow) {
+		this.in = in;
+		this.charset = charset;
+		this.position = position;
+		this.follow = follow;
+	}
+
+	/**
+	 * @return offset of the first byte that has not been returned as part of a line yet
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Reads next line without its terminator (\n or \r\n).
+	 * @return next line or null if stream is over (in follow mode: if there is no complete line yet)
+	 * @throws IOException
+	 */
+	public String readLine() throws IOException {
+		int scanFrom = start;
+		while (true) {
+			for (int i = scanFrom; i < end; i++) {
+				if (buffer[i] == '\n') {
+					return takeLine(i, i + 1);
+				}
+			}
+			if (eof) {
+				if (follow) {
+					// file may grow later, next call reads again
+					eof = false;
+					return null;
+				}
+				if (start == end) {
+					return null;
+				}
+				// last line of a stream without trailing line separator
+				return takeLine(end, end);
+			}
+			// fill() may move unread bytes to the beginning of the buffer
+			int scanned = end - start;
+			fill();
+			scanFrom = start + scanned;
+		}
+	}
+
+	private String takeLine(int lineEnd, int next) {
+		int length = lineEnd - start;
+		if (length > 0 && buffer[lineEnd - 1] == '\r') {
+			length--;
+		}
+		String line = new String(buffer, start, length, charset);
+		position += next - start;
+		start = next;
+		return line;
+	}
+
+	private void fill() throws IOException {
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		if (end == buffer.length) {
+			// a single line is longer than buffer
+			byte[] grown = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, grown, 0, end);
+			buffer = grown;
+		}
+		int read = in.read(buffer, end, buffer.length - end);
+		if (read < 0) {
+			eof = true;
+		} else {
+			end += read;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
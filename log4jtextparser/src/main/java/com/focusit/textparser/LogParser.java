@@ -1,16 +1,25 @@
 	package com.focusit.textparser;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,13 +28,10 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
-import org.apache.log4j.Category;
-import org.apache.log4j.Level;
-import org.apache.log4j.spi.LocationInfo;
-import org.apache.log4j.spi.LoggingEvent;
-import org.apache.log4j.spi.ThrowableInformation;
+import org.bson.Document;
 
 import com.focusit.log4jmongo.appender.SimpleMongoDbAppender;
+import com.mongodb.DBObject;
 
 public class LogParser extends SimpleMongoDbAppender {
 	private static String log4Pattern = "%r [%t] (%d{dd MMM yyyy HH:mm:ss,SSS}) %-5p %c{2} - %m%n";
@@ -36,12 +42,38 @@ public class LogParser extends SimpleMongoDbAppender {
 	
 	private Pattern eventPattern;
 	private Pattern stacktracePattern;
+	private Pattern stacktraceTestPattern;
+	// logger name subdocuments are the same for all events of a logger
+	private final ConcurrentMap<String, DBObject> loggerNames = new ConcurrentHashMap<>();
+	// deterministic event ids are not used if null
+	private SourceIdentity identity = null;
 	
-	private long events = 0;
+	private static final String LOG_DATE_FORMAT = "dd MMM yyyy HH:mm:ss,SSS";
+	private static final String LOG_TIME_ZONE = "Etc/GMT+3";
+	private static final int MAX_CACHED_LOGGERS = 10000;
+	private static final int DEFAULT_BATCH_SIZE = 1000;
+	private static final int DEFAULT_WRITERS = 2;
+	private static final int DEFAULT_MEMORY_MB = 256;
+	private static final int DEFAULT_DUMP_PART_MB = 256;
+	private static final long PROGRESS_INTERVAL = 1000;
+	private static final long FOLLOW_POLL_INTERVAL = 200;
+	// last event of a followed file is written when file doesn't grow for this time
+	private static final long FOLLOW_IDLE_INTERVAL = 1000;
+	
+	// SimpleDateFormat is not thread safe, parser threads get their own copy
+	private final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>(){
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat sdf = new SimpleDateFormat(LOG_DATE_FORMAT);
+			sdf.setTimeZone(TimeZone.getTimeZone(LOG_TIME_ZONE));
+			return sdf;
+		}
+	};
 	
 	public LogParser(){
 		eventPattern = Pattern.compile(eventRegex, Pattern.MULTILINE);
 		stacktracePattern = Pattern.compile(stacktraceRegex, Pattern.MULTILINE);
+		stacktraceTestPattern = Pattern.compile(stacktraceTestRegex, Pattern.MULTILINE);
 	}
 	
 	private String validateCauses(List<String> causes){
@@ -66,7 +98,7 @@ public class LogParser extends SimpleMongoDbAppender {
 				String one = causes.get(0);
 				String two = causes.get(1);
 				
-				if(one.matches(stacktraceRegex) && two.matches(stacktraceTestRegex)){
+				if(stacktracePattern.matcher(one).matches() && stacktraceTestPattern.matcher(two).matches()){
 					condition = false;
 				} else {
 					builder.append(causes.get(0));
@@ -78,197 +110,369 @@ public class LogParser extends SimpleMongoDbAppender {
 	}
 	
 	// This method should be overloaded in some way. At now this method use predefined log4j layout and it regex representation.
-	private LoggingEvent parseMatcher(String event, Matcher m, String messageAdd, List<String> causes) throws ParseException{
-		LoggingEvent e = null;
-		String thread = m.group(2);
-		SimpleDateFormat sdf = new SimpleDateFormat("dd MMM yyyy HH:mm:ss,SSS");
-		sdf.setTimeZone(TimeZone.getTimeZone("Etc/GMT+3"));
-		long timestamp = sdf.parse(m.group(3)).getTime();
-		String loggerFqn = m.group(5);
-		Category cat = new EventCategory(loggerFqn);
-		String level = m.group(4);
-		Level prio = null;
+	private Document parseMatcher(Matcher m, String messageAdd, List<String> causes) throws ParseException{
+		long timestamp = dateFormat.get().parse(m.group(3)).getTime();
+		String logger = m.group(5);
 		
 		messageAdd = messageAdd + validateCauses(causes);
-		
-		switch(level){
-			case "FATAL": prio = Level.FATAL; break;
-			case "ERROR":prio = Level.ERROR; break;
-			case "WARN":prio = Level.WARN; break;
-			case "INFO":prio = Level.INFO; break;
-			case "DEBUG":prio = Level.DEBUG; break;
-			case "TRACE":prio = Level.TRACE; break;
-		}
-		
 		String message = m.group(6)+messageAdd;
 		
-		e = new LoggingEvent(loggerFqn, cat, timestamp, prio, message, thread, new ThrowableInformation(causes.toArray(new String[causes.size()])), (String)null, (LocationInfo)null, null);
-		events++;
-		System.out.println("Parsed "+events+" event(s). Last event on "+m.group(3));
-		return e;
+		String stacktraces = null;
+		if(causes.size()>0){
+			StringBuilder builder = new StringBuilder();
+			for(String line : causes){
+				builder.append(line).append('\n');
+			}
+			stacktraces = builder.toString();
+		}
+		return toDocument(timestamp, m.group(4), m.group(2), message, logger, loggerName(logger), stacktraces);
 	}
 	
-	public LoggingEvent parseNextEvent(PushBackBufferedReader is) throws IOException, ParseException {
-		String line;
-		Matcher eventMathcer = null;
-		String event = null;
-		
-		// First of all reading lines until find first event
-		while ((line = is.readLine()) != null) {
-			Matcher epm = eventPattern.matcher(line);
-			if(epm.matches())
-			{
-				eventMathcer = epm;
-				event = line;
-				// marking this position to reset stream to this position
-				//is.mark(0);
-				break;
+	/**
+	 * @return logger name subdocument, shared by all events of the logger
+	 */
+	private DBObject loggerName(String logger){
+		DBObject result = loggerNames.get(logger);
+		if(result==null){
+			result = toLoggerName(logger);
+			if(result!=null && loggerNames.size()<MAX_CACHED_LOGGERS){
+				loggerNames.putIfAbsent(logger, result);
 			}
 		}
-		
-		// no lines left in file
-		if(line==null)
-		{
-			return null;
+		return result;
+	}
+	
+	/**
+	 * Decodes timestamp of an event header line.
+	 * @param line a line of log file
+	 * @return timestamp of the event or -1 if line is not an event header
+	 * @throws ParseException if line looks like an event header, but has broken timestamp
+	 */
+	public long parseTimestamp(String line) throws ParseException {
+		Matcher m = eventPattern.matcher(line);
+		if(!m.matches()){
+			return -1;
+		}
+		return dateFormat.get().parse(m.group(3)).getTime();
+	}
+	
+	/**
+	 * Parses lines of a single event straight into a document of the appender's layout, there is
+	 * no LoggingEvent to build and take apart again. Safe to call from several threads at once.
+	 * @param raw event lines as split by {@link EventReader}
+	 * @return parsed event
+	 * @throws ParseException if event timestamp can't be parsed
+	 */
+	public Document parseEvent(RawEvent raw) throws ParseException {
+		List<String> lines = raw.getLines();
+		Matcher eventMatcher = eventPattern.matcher(raw.getHeader());
+		if(!eventMatcher.matches()){
+			throw new ParseException("Not an event: "+raw.getHeader(), 0);
 		}
 		
 		StringBuilder builder = new StringBuilder();
 		ArrayList<String> stack = new ArrayList<>();
 		
-		// detecting next line content: is it a multiline message, or a stacktrace element or may be it is next event 
-		line = is.readLine();
-		if(line==null){
-			return parseMatcher(event, eventMathcer, builder.toString(), stack);
-		}
-		Matcher epm = eventPattern.matcher(line);
-
-		if(epm.matches()){
-			// if on next line comes event reset reader, and return parsed event
-			is.pushBack();
-			return parseMatcher(event, eventMathcer, builder.toString(), stack);
-		} else {
-			// definently there is no new event on next line. Make a test if it is a stacktrace element
-			Matcher spm = stacktracePattern.matcher(line);
-			if(!spm.matches()){
+		if(lines.size()>1){
+			// detecting next line content: is it a multiline message or a stacktrace element
+			String line = lines.get(1);
+			if(!stacktracePattern.matcher(line).matches()){
 				// ok if it is not a stacktrace element, so it must be multiline message
 				builder.append(line);
-				
-				is.mark(0);
-				// read rest of lines until get a stacktrace element 
-				while ((line = is.readLine()) != null) {
-					epm = eventPattern.matcher(line);
-					spm = stacktracePattern.matcher(line);
-					if(epm.matches()){
-						// new event - reset position and return parsed event
-						is.pushBack();
-						return parseMatcher(event, eventMathcer, builder.toString(), stack);
-					} else if(spm.matches()){
+				for(int i=2;i<lines.size();i++){
+					line = lines.get(i);
+					if(stacktracePattern.matcher(line).matches()){
 						// if next line is a stacktrace element - must save it in special array for stacks
 						stack.add(line);
 					} else {
 						builder.append(line);
 					}
-					is.mark(0);
 				}
 			} else {
-				is.mark(0);
 				stack.add(line);
-				while ((line = is.readLine()) != null) {
-					epm = eventPattern.matcher(line);
-					spm = stacktracePattern.matcher(line);
-					if(epm.matches()){
-						// new event - reset position and return parsed event
-						is.pushBack();
-						return parseMatcher(event, eventMathcer, builder.toString(), stack);
-					}
-					if(spm.matches()){
+				for(int i=2;i<lines.size();i++){
+					line = lines.get(i);
+					if(stacktracePattern.matcher(line).matches()){
 						stack.add(line);
 					}
-				}				
+				}
 			}
 		}
 		
-		return null;
+		return parseMatcher(eventMatcher, builder.toString(), stack);
 	}
 	
 	/**
-	 * Special log4j category class to allow setting category' name from external string
-	 * @author doki
-	 *
+	 * Adds what the appender adds to every event: tag, offloaded and compressed fields. Safe to call from several
+	 * threads at once.
+	 * @param bson parsed event
+	 * @return document to insert
 	 */
-	class EventCategory extends Category {
-
-		public EventCategory(String name) {
-			super(name);
-		}		
+	public Document convert(Document bson) {
+		if(getTag()!=null){
+			bson.put("tag", getTag());
+		}
+		return compress(offload(bson));
+	}
+	
+	public SourceIdentity getIdentity() {
+		return identity;
 	}
 	
 	/**
-	 * Class to make java's buffered readed possibility to push back just read line.
-	 * @author doki
-	 *
+	 * @param identity how to identify files for deterministic event ids <i>(may be null)</i>
 	 */
-	static class PushBackBufferedReader extends BufferedReader {
-
-		private volatile String prevLine = null;
-		private volatile boolean pushedBack = false;
-		
-		public PushBackBufferedReader(Reader in) {
-			super(in);
+	public void setIdentity(SourceIdentity identity) {
+		this.identity = identity;
+	}
+	
+	/**
+	 * Opens file to read from the beginning, gzip and bzip2 files are decompressed on the fly.
+	 */
+	public EventReader openReader(File file) throws IOException {
+		String key = Checkpoint.getSourceKey(Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+		String sourceId = identity != null ? identity.of(file, key) : null;
+		return new EventReader(new LineReader(InputFiles.open(file), Charset.defaultCharset()), eventPattern, false, key, sourceId);
+	}
+	
+	/**
+	 * Opens file to read from the checkpoint, or from the beginning if file was rotated or truncated since.
+	 */
+	public EventReader openReader(File file, Checkpoint checkpoint) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		long offset = 0;
+		if(Checkpoint.getSourceKey(attrs).equals(checkpoint.getSourceKey()) && attrs.size() >= checkpoint.getOffset()){
+			offset = checkpoint.getOffset();
+			System.out.println("Resuming from offset "+offset);
 		}
-
-		@Override
-		public String readLine() throws IOException {
-			
-			if(pushedBack){
-				pushedBack = false;
-				return prevLine;
-			}
-			
-			prevLine = super.readLine(); 
-			return prevLine;
+		return openReader(file, offset);
+	}
+	
+	/**
+	 * Opens uncompressed file to read from the offset, it must be an event boundary.
+	 */
+	public EventReader openReader(File file, long offset) throws IOException {
+		String key = Checkpoint.getSourceKey(Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+		String sourceId = identity != null ? identity.of(file, key) : null;
+		FileInputStream in = new FileInputStream(file);
+		in.getChannel().position(offset);
+		return new EventReader(new LineReader(in, Charset.defaultCharset(), offset, false), eventPattern, false, key, sourceId);
+	}
+	
+	public FollowSource openFollower(File file, Checkpoint checkpoint) throws IOException {
+		return new FollowSource(file, eventPattern, Charset.defaultCharset(), checkpoint, FOLLOW_POLL_INTERVAL, FOLLOW_IDLE_INTERVAL, identity);
+	}
+	
+	/**
+	 * Opens file to read events of the time window only. The beginning of the window is found with
+	 * a binary search, compressed files are scanned from the beginning.
+	 */
+	public EventSource openReader(File file, TimeRange range) throws IOException {
+		EventSource source;
+		if(InputFiles.isCompressed(file)){
+			source = openReader(file);
+		} else {
+			long offset = range.findStart(file, this);
+			System.out.println("Window starts in "+file+" at offset "+offset);
+			source = openReader(file, offset);
 		}
-		
-		public void pushBack(){
-			pushedBack = true;
+		return new TimeRangeSource(source, this, range);
+	}
+	
+	/**
+	 * Reads files concurrently, each file is read by a single thread from its beginning to the end.
+	 * @param range time window to read <i>(may be null)</i>
+	 */
+	private void ingest(final IngestPipeline pipeline, List<File> files, int readers, final TimeRange range) throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(readers, files.size()));
+		List<Future<?>> results = new ArrayList<>();
+		pipeline.start();
+		try{
+			for(final File file : files){
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						try(EventSource reader = range != null ? openReader(file, range) : openReader(file)){
+							pipeline.read(reader);
+						}
+						return null;
+					}
+				}));
+			}
+			for(int i=0;i<files.size();i++){
+				try{
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					// a broken file doesn't stop the others
+					System.err.println("Failed to read "+files.get(i)+": "+e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			pipeline.finish();
 		}
 	}
 	
-	public static void main(String[] args) throws ParseException, org.apache.commons.cli.ParseException{
+	/**
+	 * Parses time given in command line, in the same time zone as log timestamps.
+	 */
+	private static long parseTime(String time) throws ParseException {
+		SimpleDateFormat sdf = new SimpleDateFormat(time.contains("-") ? "yyyy-MM-dd HH:mm:ss" : LOG_DATE_FORMAT);
+		sdf.setTimeZone(TimeZone.getTimeZone(LOG_TIME_ZONE));
+		return sdf.parse(time).getTime();
+	}
+	
+	public static void main(String[] args) throws ParseException, org.apache.commons.cli.ParseException, InterruptedException{
 		System.out.println("Starting parser");
 
 		Options options = new Options();
-		options.addOption(new Option("f", true, "log file to parse"));
+		options.addOption(new Option("f", true, "log file, directory or glob pattern to parse, .gz and .bz2 files are decompressed (may be repeated)"));
 		options.addOption(new Option("c", true, "log collection name"));
 		options.addOption(new Option("d", true, "log database"));
 		options.addOption(new Option("h", true, "host of database"));
 		options.addOption(new Option("m", true, "write concern"));
+		options.addOption(new Option("b", true, "events per bulk insert (default "+DEFAULT_BATCH_SIZE+")"));
+		options.addOption(new Option("w", true, "number of concurrent bulk writers (default "+DEFAULT_WRITERS+")"));
+		options.addOption(new Option("p", true, "number of parser and converter threads (default number of cpus)"));
+		options.addOption(new Option("follow", false, "keep reading as file grows, survives log rotation"));
+		options.addOption(new Option("checkpoint", true, "file to save position of written events to and resume from (default <log file>.checkpoint in follow mode)"));
+		options.addOption(new Option("j", true, "number of files read concurrently (default number of cpus)"));
+		options.addOption(new Option("memory", true, "limit of log text read but not written yet, MB (default "+DEFAULT_MEMORY_MB+")"));
+		options.addOption(new Option("ids", true, "derive _id from the file and event offset to make reruns idempotent: path (host, path and inode) or content (hash of the first lines)"));
+		options.addOption(new Option("upsert", false, "with -ids, replace already stored events instead of skipping them"));
+		options.addOption(new Option("dump", true, "write a mongorestore compatible dump into this directory instead of MongoDB"));
+		options.addOption(new Option("dumpsize", true, "size of a dump part, MB (default "+DEFAULT_DUMP_PART_MB+")"));
+		options.addOption(new Option("offload", true, "move messages and stack traces longer than this, KB, to GridFS leaving a preview in the event"));
+		options.addOption(new Option("compress", true, "compress messages and stack traces longer than this, KB"));
+		options.addOption(new Option("codec", true, "codec of -compress: deflate (default) or lz4"));
+		options.addOption(new Option("from", true, "ingest events since this time, \"yyyy-MM-dd HH:mm:ss\" or log layout format"));
+		options.addOption(new Option("to", true, "ingest events till this time, \"yyyy-MM-dd HH:mm:ss\" or log layout format"));
 		
 		CommandLineParser parser = new DefaultParser();
 		CommandLine cmd = parser.parse(options, args, true);
 
-		File lf = new File(cmd.getOptionValue("f"));
+		// shell may expand a glob into several arguments after -f
+		List<String> inputs = new ArrayList<>();
+		if(cmd.getOptionValues("f")!=null){
+			inputs.addAll(Arrays.asList(cmd.getOptionValues("f")));
+		}
+		inputs.addAll(cmd.getArgList());
+		
+		int batchSize = Integer.parseInt(cmd.getOptionValue("b", String.valueOf(DEFAULT_BATCH_SIZE)));
+		int writers = Integer.parseInt(cmd.getOptionValue("w", String.valueOf(DEFAULT_WRITERS)));
+		int workers = Integer.parseInt(cmd.getOptionValue("p", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		int readers = Integer.parseInt(cmd.getOptionValue("j", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		int memoryMb = Integer.parseInt(cmd.getOptionValue("memory", String.valueOf(DEFAULT_MEMORY_MB)));
+		boolean follow = cmd.hasOption("follow");
+		
+		List<File> files;
+		try{
+			files = InputFiles.resolve(inputs);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		if(files.isEmpty()){
+			System.err.println("No log files to parse");
+			return;
+		}
+		if((follow || cmd.hasOption("checkpoint")) && (files.size()>1 || InputFiles.isCompressed(files.get(0)))){
+			System.err.println("Follow mode and checkpoints need a single uncompressed log file");
+			return;
+		}
+		TimeRange range = null;
+		if(cmd.hasOption("from") || cmd.hasOption("to")){
+			if(follow || cmd.hasOption("checkpoint")){
+				System.err.println("Time window can't be used with follow mode and checkpoints");
+				return;
+			}
+			range = new TimeRange(cmd.hasOption("from") ? parseTime(cmd.getOptionValue("from")) : Long.MIN_VALUE,
+					cmd.hasOption("to") ? parseTime(cmd.getOptionValue("to")) : Long.MAX_VALUE);
+		}
+		File lf = files.get(0);
 
 		LogParser app = new LogParser();
-		app.setCollectionName(cmd.getOptionValue("c"));
-		app.setDatabaseName(cmd.getOptionValue("d"));
-		app.setHostname(cmd.getOptionValue("h"));
-		app.setWriteConcern(cmd.getOptionValue("m"));
-		app.initialize();
+		if(cmd.hasOption("c")){
+			app.setCollectionName(cmd.getOptionValue("c"));
+		}
+		if(cmd.hasOption("d")){
+			app.setDatabaseName(cmd.getOptionValue("d"));
+		}
+		if(cmd.hasOption("h")){
+			app.setHostname(cmd.getOptionValue("h"));
+		}
+		if(cmd.hasOption("m")){
+			app.setWriteConcern(cmd.getOptionValue("m"));
+		}
+		if(cmd.hasOption("offload")){
+			app.setOffloadThreshold(cmd.getOptionValue("offload")+"KB");
+		}
+		if(cmd.hasOption("codec")){
+			app.setCompressCodec(cmd.getOptionValue("codec"));
+		}
+		if(cmd.hasOption("compress")){
+			app.setCompressThreshold(cmd.getOptionValue("compress")+"KB");
+		}
+		if(cmd.hasOption("ids")){
+			app.setIdentity(SourceIdentity.valueOf(cmd.getOptionValue("ids").toUpperCase()));
+		}
+		BsonDump dump = null;
+		if(cmd.hasOption("dump")){
+			long partSize = Long.parseLong(cmd.getOptionValue("dumpsize", String.valueOf(DEFAULT_DUMP_PART_MB))) * 1024 * 1024;
+			dump = new BsonDump(new File(cmd.getOptionValue("dump")), app.getDatabaseName(), app.getCollectionName(), partSize);
+		} else {
+			app.initialize();
+		}
 		
-		try(PushBackBufferedReader br = new PushBackBufferedReader(new FileReader(lf))){
+		String checkpointFile = cmd.getOptionValue("checkpoint", follow ? lf.getPath()+".checkpoint" : null);
+		
+		ProgressReporter progress = new ProgressReporter(PROGRESS_INTERVAL);
+		
+		try{
+			Checkpoint checkpoint = checkpointFile != null ? Checkpoint.load(new File(checkpointFile)) : null;
+			IngestPipeline pipeline = new IngestPipeline(app, app.getCollection(), batchSize, workers, writers, progress, checkpoint, memoryMb);
+			pipeline.setUpsert(cmd.hasOption("upsert") && app.getIdentity() != null);
+			pipeline.setDump(dump);
 			
-			LoggingEvent e = null;		
-			e = app.parseNextEvent(br);
-			while(e!=null){
-				app.append(e);
-				e = app.parseNextEvent(br);				
+			if(follow){
+				final FollowSource source = app.openFollower(lf, checkpoint);
+				final Thread main = Thread.currentThread();
+				// stop gracefully on Ctrl+C: write pending events and save checkpoint
+				Runtime.getRuntime().addShutdownHook(new Thread(){
+					@Override
+					public void run() {
+						source.stop();
+						try {
+							main.join();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+				try(EventSource s = source){
+					pipeline.run(s);
+				}
+			} else if(checkpoint != null) {
+				try(EventSource reader = app.openReader(lf, checkpoint)){
+					pipeline.run(reader);
+				}
+			} else {
+				app.ingest(pipeline, files, readers, range);
 			}
-			
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			progress.finish();
+			if(dump!=null){
+				try {
+					dump.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			app.close();
 		}
 	}
 }
@@ -0,0 +1,67 @@
+package com.focusit.textparser;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe ingestion progress counter. Prints at most one line per report interval no matter how
+ * many threads feed it.
+ * @author doki
+ *
+ */
+class ProgressReporter {
+	private final long intervalMillis;
+	private final long started = System.currentTimeMillis();
+	private final AtomicLong events = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong lastReport = new AtomicLong(started);
+
+	public ProgressReporter(long intervalMillis) {
+		this.intervalMillis = intervalMillis;
+	}
+
+	public void written(long eventCount, long byteCount) {
+		events.addAndGet(eventCount);
+		bytes.addAndGet(byteCount);
+		maybeReport();
+	}
+
+	public void failed(long eventCount) {
+		failed.addAndGet(eventCount);
+	}
+
+	/**
+	 * Counts events that were already stored by a previous run.
+	 */
+	public void duplicates(long eventCount) {
+		duplicates.addAndGet(eventCount);
+	}
+
+	public long getEvents() {
+		return events.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	private void maybeReport() {
+		long now = System.currentTimeMillis();
+		long last = lastReport.get();
+		if (now - last >= intervalMillis && lastReport.compareAndSet(last, now)) {
+			print("Parsed", now);
+		}
+	}
+
+	public void finish() {
+		print("Finished.", System.currentTimeMillis());
+	}
+
+	private void print(String prefix, long now) {
+		double seconds = Math.max(now - started, 1) / 1000.0;
+		System.out.println(String.format("%s %d event(s) (%d failed, %d already stored), %.0f events/s, %.2f MB/s",
+				prefix, events.get(), failed.get(), duplicates.get(), events.get() / seconds,
+				bytes.get() / seconds / (1024 * 1024)));
+	}
+}
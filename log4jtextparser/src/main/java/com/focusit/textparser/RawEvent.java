@@ -0,0 +1,37 @@
+package com.focusit.textparser;
+
+import java.util.List;
+
+/**
+ * Unparsed log event: header line with all continuation lines (multiline message, stacktrace)
+ * and its byte range in the source file.
+ * @author doki
+ *
+ */
+class RawEvent {
+	private final List<String> lines;
+	private final long offset;
+	private final long endOffset;
+
+	public RawEvent(List<String> lines, long offset, long endOffset) {
+		this.lines = lines;
+		this.offset = offset;
+		this.endOffset = endOffset;
+	}
+
+	public List<String> getLines() {
+		return lines;
+	}
+
+	public String getHeader() {
+		return lines.get(0);
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getEndOffset() {
+		return endOffset;
+	}
+}
@@ -0,0 +1,97 @@
+package com.focusit.textparser;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Ways to identify a log file for deterministic event ids. An event id is the source id plus the
+ * byte offset of the event, so parsing the same file again produces the same ids, and MongoDB
+ * rejects already ingested events instead of storing them twice.
+ * @author doki
+ *
+ */
+enum SourceIdentity {
+	/**
+	 * Host, canonical path and inode of the file. Changes when file is renamed by log rotation.
+	 */
+	PATH {
+		@Override
+		public String of(File file, String fileKey) throws IOException {
+			String host = InetAddress.getLocalHost().getHostName();
+			return hash((host + '\0' + file.getCanonicalPath() + '\0' + fileKey).getBytes(StandardCharsets.UTF_8));
+		}
+	},
+	/**
+	 * Hash of the first HEAD_LINES non-blank lines of the (decompressed) file. Survives renames and
+	 * compression of rotated files, and makes overlapping copies of a log share ids. Rotated files
+	 * often start with the same banner, so a single line is not enough. A file shorter than that is
+	 * identified by all of its lines, so its id changes while it grows to HEAD_LINES lines.
+	 */
+	CONTENT {
+		@Override
+		public String of(File file, String fileKey) throws IOException {
+			ByteArrayOutputStream head = new ByteArrayOutputStream();
+			try (InputStream in = new BufferedInputStream(InputFiles.open(file))) {
+				int lines = 0;
+				boolean blank = true;
+				int b;
+				while (lines < HEAD_LINES && head.size() < HEAD_SIZE && (b = in.read()) >= 0) {
+					if (b == '\n') {
+						if (!blank) {
+							head.write(b);
+							lines++;
+						}
+						blank = true;
+					} else if (!Character.isWhitespace(b) || !blank) {
+						head.write(b);
+						blank = false;
+					}
+				}
+			}
+			return hash(head.toByteArray());
+		}
+	};
+
+	private static final int HEAD_LINES = 16;
+	private static final int HEAD_SIZE = 64 * 1024;
+	// 96 bits of SHA-1 are plenty to tell log files apart
+	private static final int ID_LENGTH = 24;
+
+	/**
+	 * @param file log file
+	 * @param fileKey inode of the file
+	 * @return id of the file
+	 * @throws IOException
+	 */
+	public abstract String of(File file, String fileKey) throws IOException;
+
+	/**
+	 * @param sourceId id of the file
+	 * @param offset offset of event in the file
+	 * @return _id of event document
+	 */
+	public static String eventId(String sourceId, long offset) {
+		return sourceId + ':' + Long.toHexString(offset);
+	}
+
+	private static String hash(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			StringBuilder builder = new StringBuilder(ID_LENGTH);
+			for (int i = 0; i < ID_LENGTH / 2; i++) {
+				builder.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+				builder.append(Character.forDigit(digest[i] & 0xF, 16));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
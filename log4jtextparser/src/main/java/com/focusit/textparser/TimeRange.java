@@ -0,0 +1,96 @@
+package com.focusit.textparser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+
+/**
+ * Time window of events to ingest. The first event of the window is found by a binary search over
+ * byte offsets of the file: every probe seeks into the middle of the remaining range and reads the
+ * timestamp of the nearest event, so only a few dozen small reads are needed even for a huge log.
+ *
+ * Log files are expected to be (roughly) sorted by time, as appenders write them.
+ * @author doki
+ *
+ */
+class TimeRange {
+	private final long from;
+	private final long to;
+
+	/**
+	 * @param from first timestamp of the window, Long.MIN_VALUE if unbounded
+	 * @param to last timestamp of the window, Long.MAX_VALUE if unbounded
+	 */
+	public TimeRange(long from, long to) {
+		this.from = from;
+		this.to = to;
+	}
+
+	public boolean contains(long timestamp) {
+		return timestamp >= from && timestamp <= to;
+	}
+
+	public boolean isAfter(long timestamp) {
+		return timestamp > to;
+	}
+
+	/**
+	 * @param file uncompressed log file
+	 * @param parser event decoder
+	 * @return offset of the first event not older than the beginning of the window, or file size if
+	 *         there is no such event
+	 * @throws IOException
+	 */
+	public long findStart(File file, LogParser parser) throws IOException {
+		if (from == Long.MIN_VALUE) {
+			return 0;
+		}
+		long lo = 0;
+		long hi = file.length();
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			long[] event = probe(file, parser, mid);
+			if (event == null || event[1] >= from) {
+				hi = mid;
+			} else {
+				// the event at mid is too old, so are all events before it
+				lo = event[0] + 1;
+			}
+		}
+		long[] event = probe(file, parser, lo);
+		return event != null ? event[0] : file.length();
+	}
+
+	/**
+	 * Finds the first event that starts at or after the position.
+	 * @return offset and timestamp of the event, null if there are no events after position
+	 */
+	private long[] probe(File file, LogParser parser, long position) throws IOException {
+		// start one byte earlier and skip to the end of line to land exactly on a line start
+		long start = Math.max(position - 1, 0);
+		try (FileInputStream in = new FileInputStream(file)) {
+			in.getChannel().position(start);
+			LineReader reader = new LineReader(in, Charset.defaultCharset(), start, false);
+			if (position > 0) {
+				reader.readLine();
+			}
+			while (true) {
+				long offset = reader.getPosition();
+				String line = reader.readLine();
+				if (line == null) {
+					return null;
+				}
+				try {
+					long timestamp = parser.parseTimestamp(line);
+					if (timestamp >= 0) {
+						return new long[] { offset, timestamp };
+					}
+				} catch (ParseException e) {
+					// looks like an event, but it isn't, keep looking
+				}
+			}
+		}
+	}
+}
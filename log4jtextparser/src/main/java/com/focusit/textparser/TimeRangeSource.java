@@ -0,0 +1,63 @@
+package com.focusit.textparser;
+
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * Passes through only events inside a time window, and stops reading at the first event after the
+ * window.
+ * @author doki
+ *
+ */
+class TimeRangeSource implements EventSource {
+	private final EventSource source;
+	private final LogParser parser;
+	private final TimeRange range;
+	private boolean exhausted = false;
+
+	public TimeRangeSource(EventSource source, LogParser parser, TimeRange range) {
+		this.source = source;
+		this.parser = parser;
+		this.range = range;
+	}
+
+	@Override
+	public RawEvent next() throws IOException {
+		RawEvent event;
+		while (!exhausted && (event = source.next()) != null) {
+			long timestamp;
+			try {
+				timestamp = parser.parseTimestamp(event.getHeader());
+			} catch (ParseException e) {
+				// parser stage reports it
+				return event;
+			}
+			if (range.isAfter(timestamp)) {
+				exhausted = true;
+			} else if (range.contains(timestamp)) {
+				return event;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean isExhausted() {
+		return exhausted || source.isExhausted();
+	}
+
+	@Override
+	public String getSourceKey() {
+		return source.getSourceKey();
+	}
+
+	@Override
+	public String getSourceId() throws IOException {
+		return source.getSourceId();
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+}